@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.util.*;
+
+/*
+ * Benchmark of typed POJO input against Map input: time to build a
+ * task whose input is a list of rows, encoding the rows as JSON. The
+ * Map path includes building the Map rows from the POJO, as callers
+ * holding typed data must. Reports the best and median time of each
+ * path over the measured rounds.
+ *
+ *   ./gradlew benchmark -Pbenchmark=OCPUEncodingBenchmark
+ */
+public class OCPUEncodingBenchmark {
+
+    private static final int ROWS = 20000;
+    private static final int WARMUP = 20;
+    private static final int ROUNDS = 30;
+
+    static class Person {
+        String name;
+        int age;
+        List<Double> scores;
+
+        Person(String name, int age, List<Double> scores) {
+            this.name = name;
+            this.age = age;
+            this.scores = scores;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        List<Person> people = new ArrayList<Person>();
+        for(int i = 0; i < ROWS; i++) {
+            people.add(new Person("p" + i, i % 90,
+                                  Arrays.asList(i * 0.5, i * 1.5)));
+        }
+
+        long[] typed = new long[ROUNDS];
+        long[] mapped = new long[ROUNDS];
+        long sink = 0L;
+
+        for(int r = -WARMUP; r < ROUNDS; r++) {
+
+            long start = System.nanoTime();
+            sink += input(typed(people)).length();
+            long typedNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += input(mapped(people)).length();
+            long mappedNanos = System.nanoTime() - start;
+
+            if(r >= 0) {
+                typed[r] = typedNanos;
+                mapped[r] = mappedNanos;
+            }
+        }
+
+        if(!input(typed(people)).equals(input(mapped(people))))
+            throw new IllegalStateException("Typed and Map input differ.");
+
+        System.out.println("Encode " + ROWS + " rows, " + ROUNDS + " rounds, " +
+            System.getProperty("java.version") + " (" + sink + " chars)");
+        report("typed", typed);
+        report("map", mapped);
+    }
+
+    private static OCPUTask typed(List<Person> people) throws OCPUException {
+        return OCPU.R().pkg("tvscore").function("tv")
+                   .input("people", people).library();
+    }
+
+    private static OCPUTask mapped(List<Person> people) throws OCPUException {
+        List<Map> rows = new ArrayList<Map>();
+        for(Person p : people) {
+            Map row = new LinkedHashMap();
+            row.put("name", p.name);
+            row.put("age", p.age);
+            row.put("scores", p.scores);
+            rows.add(row);
+        }
+        Map data = new HashMap();
+        data.put("people", rows);
+        return OCPU.R().pkg("tvscore").function("tv").input(data).library();
+    }
+
+    private static String input(OCPUTask task) {
+        return ((BaseTask) task).input();
+    }
+
+    private static void report(String path, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("  %-6s best %6.2f ms  median %6.2f ms%n", path,
+                          sorted[0] / 1e6, sorted[sorted.length / 2] / 1e6);
+    }
+
+}
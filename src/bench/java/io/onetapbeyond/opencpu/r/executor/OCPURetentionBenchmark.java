@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.util.*;
+
+/*
+ * Benchmark of the memory footprint of each retention mode: heap
+ * retained per result while holding the results of tasks with
+ * distinct input data and a numeric vector output. Each mode is
+ * measured over several rounds, reporting the median measurement,
+ * as the heap is only sampled after requesting garbage collection.
+ *
+ *   ./gradlew benchmark -Pbenchmark=OCPURetentionBenchmark
+ */
+public class OCPURetentionBenchmark {
+
+    private static final String ENDPOINT = "http://ocpu/ocpu";
+    private static final int RESULTS = 5000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+
+        StringBuilder vector = new StringBuilder("[");
+        for(int i = 0; i < 100; i++) {
+            vector.append(i == 0 ? "" : ",").append(i * 0.123456789);
+        }
+        String body = vector.append("]").toString();
+
+        Map<OCPURetention, long[]> footprint =
+                        new EnumMap<OCPURetention, long[]>(OCPURetention.class);
+        for(OCPURetention retention : OCPURetention.values())
+            footprint.put(retention, new long[ROUNDS]);
+        for(int round = 0; round < ROUNDS; round++) {
+            for(OCPURetention retention : OCPURetention.values())
+                footprint.get(retention)[round] = footprint(retention, body);
+        }
+
+        System.out.println("Retained bytes per result, " + RESULTS +
+            " results, " + ROUNDS + " rounds, " +
+            System.getProperty("java.version"));
+        for(Map.Entry<OCPURetention, long[]> mode : footprint.entrySet()) {
+            long[] bytes = mode.getValue();
+            Arrays.sort(bytes);
+            System.out.printf("  %-9s median %6d  range %6d - %6d%n",
+                              mode.getKey(), bytes[ROUNDS / 2],
+                              bytes[0], bytes[ROUNDS - 1]);
+        }
+    }
+
+    /*
+     * Heap bytes retained per result, each result of a
+     * task with distinct input data.
+     */
+    private static long footprint(OCPURetention retention, String body)
+                                                    throws Exception {
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, body);
+        List<OCPUResult> results = new ArrayList<OCPUResult>();
+        long before = heap();
+        for(int i = 0; i < RESULTS; i++) {
+            Map data = new HashMap();
+            data.put("x", Collections.nCopies(300, i * 0.5));
+            results.add(OCPU.R().pkg("stats").function("rnorm")
+                            .input(data).retention(retention).library()
+                            .execute(ENDPOINT, transport));
+        }
+        /*
+         * The transport records requests, drop it
+         * so only results are retained.
+         */
+        transport = null;
+        long after = heap();
+        if(!results.get(results.size() - 1).success())
+            throw new IllegalStateException("Task execution failed.");
+        return (after - before) / results.size();
+    }
+
+    private static long heap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -16,6 +16,8 @@
 package io.onetapbeyond.opencpu.r.executor;
 
 import io.onetapbeyond.opencpu.r.executor.tasks.*;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUAdapters;
+import java.nio.file.Path;
 import java.util.Map;
 import com.google.gson.*;
 
@@ -41,6 +43,7 @@ public class OCPU {
 	private boolean script;
 	private String input;
 	private String output;
+	private TaskOptions options = TaskOptions.DEFAULT;
 
 	private OCPU() {}
 
@@ -120,13 +123,146 @@ public class OCPU {
 		return this;
 	}
 
+	/**
+	 * Specify typed input data on the {@link OCPUTask}. The fields
+	 * of the object become the named R function arguments. Objects
+	 * are written directly as JSON text by the Gson adapter of their
+	 * class, no intermediate Map is built. The adapter is cached per
+	 * class, field values are still read reflectively on each call.
+	 *
+	 * @param input an object, for example a POJO, encoding as a
+	 * JSON object
+	 * @return {@link OCPUTask} builder instance
+	 * @throws OCPUException if input can not be converted to a
+	 * valid JSON object
+	 */
+	public OCPU input(Object input) throws OCPUException {
+
+		String json = encode(input);
+		if(!json.startsWith("{"))
+			throw new OCPUException("Task input data must be a JSON object.");
+		this.input = json;
+		return this;
+	}
+
+	/**
+	 * Specify a named input argument on the {@link OCPUTask}, added
+	 * to input data already specified. The value, for example a POJO
+	 * or a List of POJO, is written directly as JSON text by the Gson
+	 * adapter of its class.
+	 *
+	 * @param name the R function argument name
+	 * @param value the argument value
+	 * @return {@link OCPUTask} builder instance
+	 * @throws OCPUException if value can not be converted to valid JSON
+	 */
+	public OCPU input(String name, Object value) throws OCPUException {
+
+		String arg = gson.toJson(name) + ":" + encode(value);
+		if(input == null || !input.startsWith("{") || input.equals("{}"))
+			this.input = "{" + arg + "}";
+		else
+			this.input = input.substring(0, input.length() - 1) + "," + arg + "}";
+		return this;
+	}
+
+	/**
+	 * Specify a file input on the {@link OCPUTask}. The file is
+	 * uploaded as the named R function argument, streamed from disk
+	 * using multipart/form-data, so file data is never loaded onto
+	 * the Java heap. On the OpenCPU server the argument holds the
+	 * path of the uploaded file, for example for use with
+	 * <i>read.csv</i> or <i>readRDS</i>. Input data specified using
+	 * {@link #input(Map)} is sent alongside the file arguments.
+	 *
+	 * @param name the R function argument name.
+	 * @param file the CSV, RDS, JSON or other file uploaded.
+	 * @return {@link OCPUTask} builder instance.
+	 */
+	public OCPU file(String name, Path file) {
+		this.options = options.withFile(name, file.toString());
+		return this;
+	}
+
+	/**
+	 * Specify a pinned dataset input on the {@link OCPUTask}. The
+	 * dataset, registered on an {@link OCPUDatasets} registry, is
+	 * passed as the named R function argument by reference to the
+	 * OpenCPU session holding it rather than being sent on each call.
+	 * Tasks with dataset inputs are executed using
+	 * {@link OCPUDatasets#execute(OCPUTask, String)}.
+	 *
+	 * @param name the R function argument name.
+	 * @param dataset the name of the dataset pinned on the registry.
+	 * @return {@link OCPUTask} builder instance.
+	 */
+	public OCPU dataset(String name, String dataset) {
+		this.options = options.withDataset(name, dataset);
+		return this;
+	}
+
+	/**
+	 * Stream the R function return value, or the named R script
+	 * object, into a file rather than capturing it in memory. Use
+	 * for data outputs too large to hold on the Java heap, see
+	 * {@link OCPUResult#file(String)} and
+	 * {@link OCPUResult#vector(String)}.
+	 *
+	 * @param file the file receiving the JSON data output,
+	 * replaced whole on each execution, so concurrent executions
+	 * of the task leave it holding one complete output.
+	 * @return {@link OCPUTask} builder instance.
+	 */
+	public OCPU outputFile(Path file) {
+		this.options = options.withOutputFile(file.toString());
+		return this;
+	}
+
+	/**
+	 * Limit the size of the response body read into memory on
+	 * the {@link OCPUTask}. Executions receiving a larger response
+	 * fail rather than exhausting the Java heap. Outputs streamed
+	 * to disk, see {@link #outputFile(Path)}, and row streams, see
+	 * {@link OCPUTask#rows(String)}, are not limited.
+	 *
+	 * @param bytes the maximum response size in bytes, zero
+	 * for no limit.
+	 * @return {@link OCPUTask} builder instance.
+	 */
+	public OCPU maxResponseSize(long bytes) {
+		this.options = options.withMaxResponseSize(bytes);
+		return this;
+	}
+
+	/**
+	 * Specify the data retained by the {@link OCPUResult} of the
+	 * {@link OCPUTask}. Defaults to {@link OCPURetention#FULL}, use
+	 * lean modes when many results are held in memory.
+	 *
+	 * @param retention the result retention mode.
+	 * @return {@link OCPUTask} builder instance.
+	 */
+	public OCPU retention(OCPURetention retention) {
+		this.options = options.withRetention(retention);
+		return this;
+	}
+
+	private static String encode(Object value) throws OCPUException {
+		try {
+			return OCPUAdapters.toJson(value);
+		} catch(Exception gex) {
+			throw new OCPUException("Task input data invalid.", gex);
+		}
+	}
+
 	/**
 	 * Build an {@link OCPUTask} using an R package on the OpenCPU server.
 	 * 
 	 * @return an executable {@link OCPUTask}.
 	 */
 	public OCPUTask library() {
-		return new LibraryTask(user, pkg, function, script, input, output);
+		return new LibraryTask(user, pkg, function, script, input, output,
+							   options);
 	}
 
 	/**
@@ -135,7 +271,8 @@ public class OCPU {
 	 * @return an executable {@link OCPUTask}.
 	 */
 	public OCPUTask cran() {
-		return new CRANTask(user, pkg, function, script, input, output);
+		return new CRANTask(user, pkg, function, script, input, output,
+							   options);
 	}
 
 	/**
@@ -144,7 +281,8 @@ public class OCPU {
 	 * @return an executable {@link OCPUTask}.
 	 */
 	public OCPUTask bioc() {
-		return new BIOCTask(user, pkg, function, script, input, output);
+		return new BIOCTask(user, pkg, function, script, input, output,
+							   options);
 	}
 
 	/**
@@ -153,7 +291,8 @@ public class OCPU {
 	 * @return an executable {@link OCPUTask}.
 	 */
 	public OCPUTask github() {
-		return new GitHubTask(user, pkg, function, script, input, output);
+		return new GitHubTask(user, pkg, function, script, input, output,
+							   options);
 	}
 
 	/**
@@ -162,7 +301,8 @@ public class OCPU {
 	 * @return an executable {@link OCPUTask}.
 	 */
 	public OCPUTask gist() {
-		return new GistTask(user, pkg, function, script, input, output);
+		return new GistTask(user, pkg, function, script, input, output,
+							   options);
 	}
 
 }
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Circuit breakers failing {@link OCPUTask} executions fast while an
+ * OpenCPU server endpoint, or an R function on the endpoint, is
+ * failing or slow:
+ * <pre>
+ * {@code
+ * OCPUCircuitBreaker breaker =
+ *     new OCPUCircuitBreaker(50, 0.5, 10000L, 0.8, 30000L, 3);
+ * OCPUResult oResult = breaker.execute(oTask, endpoint);
+ * }
+ * </pre>
+ * <p>
+ * A breaker is kept for each endpoint and for each R call path on an
+ * endpoint, for example <i>/library/stats/R/rnorm/json</i>, so that a
+ * broken R package trips its own breaker without affecting other
+ * packages on the same endpoint. HTTP 4xx responses, reporting R
+ * errors on a responsive server, count as failures of the R call path
+ * only. Each breaker tracks the outcome of the last <i>window</i>
+ * executions. Once the window is full and either the failure rate or
+ * the slow call rate reaches its threshold, the breaker opens and
+ * executions fail immediately with
+ * an {@link OpenException} cause, without a request to the server.
+ * After <i>openMillis</i> the breaker lets <i>probes</i> trial
+ * executions through, closing once all succeed in time and opening
+ * again on the first failed or slow trial.
+ * <p>
+ * Outcomes are recorded without locks, so the breakers add no
+ * contention between executions.
+ */
+public class OCPUCircuitBreaker {
+
+	/**
+	 * Circuit breaker state.
+	 */
+	public static enum State {
+
+		/**
+		 * Executions are permitted and their outcomes tracked.
+		 */
+		CLOSED,
+
+		/**
+		 * Executions fail fast.
+		 */
+		OPEN,
+
+		/**
+		 * A limited number of trial executions are permitted.
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * Cause of an {@link OCPUResult} for an execution failed fast
+	 * by an open circuit breaker.
+	 */
+	public static class OpenException extends OCPUException {
+
+		private final String circuit;
+
+		OpenException(String circuit) {
+			super("Circuit breaker open on " + circuit + ".");
+			this.circuit = circuit;
+		}
+
+		/**
+		 * Returns the endpoint, or endpoint and R call path,
+		 * of the open circuit breaker.
+		 * @return the open circuit
+		 */
+		public String circuit() {
+			return circuit;
+		}
+	}
+
+	private final int window;
+	private final double failureRate;
+	private final long slowNanos;
+	private final double slowRate;
+	private final long openNanos;
+	private final int probes;
+	private final ConcurrentMap<String, Circuit> circuits =
+							new ConcurrentHashMap<String, Circuit>();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private static final int REJECTED = 0;
+	private static final int PERMITTED = 1;
+	private static final int TRIAL = 2;
+
+	/**
+	 * Create circuit breakers.
+	 * @param window number of recent executions tracked
+	 * @param failureRate failure rate, between 0 and 1, opening
+	 * the breaker
+	 * @param slowMillis duration (ms) beyond which an execution
+	 * is slow
+	 * @param slowRate slow call rate, between 0 and 1, opening
+	 * the breaker
+	 * @param openMillis time (ms) the breaker stays open before
+	 * trial executions are permitted
+	 * @param probes number of trial executions that must succeed
+	 * to close the breaker
+	 */
+	public OCPUCircuitBreaker(int window,
+							  double failureRate,
+							  long slowMillis,
+							  double slowRate,
+							  long openMillis,
+							  int probes) {
+		if(window < 1)
+			throw new IllegalArgumentException("window < 1");
+		if(probes < 1)
+			throw new IllegalArgumentException("probes < 1");
+		this.window = window;
+		this.failureRate = failureRate;
+		this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+		this.slowRate = slowRate;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.probes = probes;
+	}
+
+	/**
+	 * Execute the R task on the endpoint unless a circuit breaker
+	 * is open.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the endpoint unless a circuit breaker
+	 * is open.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		Circuit server = circuit(endpoint);
+		Circuit call = circuit(endpoint + task);
+
+		int serverPermit = server.acquire();
+		if(serverPermit == REJECTED)
+			return rejected(endpoint);
+		int callPermit = call.acquire();
+		if(callPermit == REJECTED) {
+			server.release(serverPermit);
+			return rejected(endpoint + task);
+		}
+
+		long start = System.nanoTime();
+		OCPUResult oResult = null;
+		boolean failed = true;
+		try {
+			oResult = task.execute(endpoint, transport);
+			/*
+			 * Script tasks without output have no result,
+			 * their call succeeded.
+			 */
+			failed = (oResult != null && !oResult.success());
+			return oResult;
+		} finally {
+			boolean slow = (System.nanoTime() - start) >= slowNanos;
+			server.record(serverPermit, failed && !rejectedByR(oResult), slow);
+			call.record(callPermit, failed, slow);
+		}
+	}
+
+	/**
+	 * Returns the state of the circuit breaker of the endpoint.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the circuit breaker state
+	 */
+	public State state(String endpoint) {
+		return state(circuits.get(endpoint));
+	}
+
+	/**
+	 * Returns the state of the circuit breaker of the R call
+	 * made by the task on the endpoint.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the circuit breaker state
+	 */
+	public State state(OCPUTask task, String endpoint) {
+		return state(circuits.get(endpoint + task));
+	}
+
+	/**
+	 * Returns the number of executions failed fast.
+	 * @return number of rejected executions
+	 */
+	public long rejected() {
+		return rejected.get();
+	}
+
+	private Circuit circuit(String key) {
+		Circuit circuit = circuits.get(key);
+		if(circuit == null) {
+			Circuit created = new Circuit();
+			circuit = circuits.putIfAbsent(key, created);
+			if(circuit == null)
+				circuit = created;
+		}
+		return circuit;
+	}
+
+	private State state(Circuit circuit) {
+		if(circuit == null)
+			return State.CLOSED;
+		State state = circuit.state.get();
+		if(state == State.OPEN &&
+			System.nanoTime() - circuit.openedAt >= openNanos)
+			return State.HALF_OPEN;
+		return state;
+	}
+
+	/*
+	 * Failures reported by R on a responsive server, such as an R
+	 * error in the called function, count against the R call path
+	 * breaker only.
+	 */
+	private static boolean rejectedByR(OCPUResult oResult) {
+		if(oResult == null || !(oResult.cause() instanceof OCPUException))
+			return false;
+		int status = ((OCPUException) oResult.cause()).status();
+		return status >= 400 && status < 500;
+	}
+
+	private OCPUResult rejected(String circuit) {
+		rejected.incrementAndGet();
+		return new OCPUResultImpl(false, null, null,
+					"Task execution failed.", new OpenException(circuit), 0L);
+	}
+
+	/*
+	 * Circuit breaker of a single endpoint or R call path.
+	 */
+	private final class Circuit {
+
+		private final AtomicReference<State> state =
+							new AtomicReference<State>(State.CLOSED);
+		private final AtomicInteger trials = new AtomicInteger();
+		private final AtomicInteger passed = new AtomicInteger();
+		private volatile Window outcomes = new Window(window);
+		private volatile long openedAt;
+
+		/*
+		 * Permit an execution, taking a trial permit once
+		 * the open period has elapsed.
+		 */
+		private int acquire() {
+			for(;;) {
+				State current = state.get();
+				if(current == State.CLOSED)
+					return PERMITTED;
+				if(current == State.OPEN) {
+					if(System.nanoTime() - openedAt < openNanos)
+						return REJECTED;
+					if(state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+						passed.set(0);
+						trials.set(probes);
+					}
+					continue;
+				}
+				int remaining = trials.get();
+				if(remaining <= 0)
+					return REJECTED;
+				if(trials.compareAndSet(remaining, remaining - 1))
+					return TRIAL;
+			}
+		}
+
+		/*
+		 * Return an unused trial permit.
+		 */
+		private void release(int permit) {
+			if(permit == TRIAL && state.get() == State.HALF_OPEN)
+				trials.incrementAndGet();
+		}
+
+		/*
+		 * Record the outcome of a permitted execution. Outcomes of
+		 * executions started before the breaker opened are ignored
+		 * until the breaker closes again.
+		 */
+		private void record(int permit, boolean failed, boolean slow) {
+
+			State current = state.get();
+
+			if(permit == TRIAL) {
+				if(current != State.HALF_OPEN)
+					return;
+				if(failed || slow)
+					trip(State.HALF_OPEN);
+				else if(passed.incrementAndGet() >= probes) {
+					outcomes = new Window(window);
+					state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+				}
+			} else if(current == State.CLOSED) {
+				Window recent = outcomes;
+				recent.record(failed, slow);
+				int calls = recent.calls.get();
+				if(calls >= window &&
+					(recent.failures.get() >= failureRate * calls ||
+					 recent.slow.get() >= slowRate * calls))
+					trip(State.CLOSED);
+			}
+		}
+
+		private void trip(State from) {
+			trials.set(0);
+			openedAt = System.nanoTime();
+			state.compareAndSet(from, State.OPEN);
+		}
+	}
+
+	/*
+	 * Sliding window over the outcomes of the most recent
+	 * executions, each slot holding a recorded flag plus failed
+	 * and slow flags. Totals are adjusted as slots are overwritten.
+	 */
+	private static final class Window {
+
+		private static final int RECORDED = 1;
+		private static final int FAILED = 2;
+		private static final int SLOW = 4;
+
+		private final AtomicIntegerArray slots;
+		private final AtomicInteger cursor = new AtomicInteger();
+		private final AtomicInteger calls = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+		private final AtomicInteger slow = new AtomicInteger();
+
+		private Window(int size) {
+			this.slots = new AtomicIntegerArray(size);
+		}
+
+		private void record(boolean failed, boolean slowCall) {
+			int outcome = RECORDED | (failed ? FAILED : 0) |
+										(slowCall ? SLOW : 0);
+			int slot = (cursor.getAndIncrement() & Integer.MAX_VALUE) %
+							slots.length();
+			int evicted = slots.getAndSet(slot, outcome);
+			if(evicted == 0)
+				calls.incrementAndGet();
+			failures.addAndGet(flag(outcome, FAILED) - flag(evicted, FAILED));
+			slow.addAndGet(flag(outcome, SLOW) - flag(evicted, SLOW));
+		}
+
+		private static int flag(int outcome, int flag) {
+			return ((outcome & flag) != 0) ? 1 : 0;
+		}
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import static io.onetapbeyond.opencpu.r.executor.util.OCPUConstants.*;
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.tasks.*;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.*;
+
+/**
+ * Registry of pinned datasets shared by many {@link OCPUTask}. A
+ * dataset is uploaded once to each OpenCPU server endpoint, the key
+ * of the OpenCPU session holding it is cached and tasks reference
+ * the dataset by that key rather than sending it on every call:
+ * <pre>
+ * {@code
+ * OCPUDatasets datasets = new OCPUDatasets(64);
+ * datasets.pin("reference", referenceTable);
+ * OCPUTask oTask = OCPU.R().pkg(pName).function(fName)
+ *                      .input(fInput).dataset("table", "reference").library();
+ * OCPUResult oResult = datasets.execute(oTask, endpoint);
+ * }
+ * </pre>
+ * <p>
+ * Session keys are cached per endpoint and per dataset, least
+ * recently used keys are evicted beyond the configured capacity.
+ * When a call fails and a cached session no longer exists on the
+ * server, for example after session expiry, the dataset is uploaded
+ * again and the call retried once.
+ */
+public class OCPUDatasets {
+
+	private static Gson gson = new Gson();
+
+	private final ConcurrentMap<String, String> datasets =
+							new ConcurrentHashMap<String, String>();
+	private final Map<String, FutureTask<String>> sessions;
+	private final AtomicLong uploads = new AtomicLong();
+
+	/**
+	 * Create a dataset registry.
+	 * @param maxSessions maximum number of session keys cached
+	 * across all datasets and endpoints.
+	 */
+	public OCPUDatasets(final int maxSessions) {
+		this.sessions = new LinkedHashMap<String, FutureTask<String>>(
+											16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, FutureTask<String>> eldest) {
+				return size() > maxSessions;
+			}
+		};
+	}
+
+	/**
+	 * Pin a dataset on the registry. The data is encoded once,
+	 * pinning new data under an existing name replaces it.
+	 *
+	 * @param name the dataset name.
+	 * @param data a Map or List representing the JSON dataset.
+	 * @throws OCPUException if data can not be converted to valid JSON
+	 */
+	public void pin(String name, Object data) throws OCPUException {
+
+		Map<String, Object> args = new HashMap<String, Object>();
+		args.put("x", data);
+
+		try {
+			datasets.put(name, gson.toJson(args));
+		} catch(Exception gex) {
+			throw new OCPUException("Dataset " + name + " invalid.", gex);
+		}
+		evict(name, null);
+	}
+
+	/**
+	 * Remove a dataset from the registry.
+	 * @param name the dataset name.
+	 */
+	public void unpin(String name) {
+		datasets.remove(name);
+		evict(name, null);
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the default
+	 * endpoint, resolving its pinned dataset inputs.
+	 * @param task the R task
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task) {
+		return execute(task, OCPU_DEFAULT_ENDPOINT);
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided
+	 * endpoint, resolving its pinned dataset inputs.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided
+	 * endpoint, resolving its pinned dataset inputs.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		if(!(task instanceof BaseTask) ||
+			((BaseTask) task).options().datasets().isEmpty())
+			return task.execute(endpoint, transport);
+
+		BaseTask prototype = (BaseTask) task;
+		Map<String, String> args = prototype.options().datasets();
+		OCPUResult oResult = null;
+
+		for(int attempt = 0; attempt < 2; attempt++) {
+
+			Map<String, String> keys = new LinkedHashMap<String, String>();
+
+			try {
+				for(Map.Entry<String, String> arg : args.entrySet()) {
+					keys.put(arg.getKey(),
+						session(arg.getValue(), endpoint, transport));
+				}
+			} catch(OCPUException oex) {
+				String msg = "Task dataset upload failed.";
+				return new OCPUResultImpl(false, null, null, msg, oex, 0L);
+			}
+
+			oResult = new BoundTask(prototype,
+						prototype.options().withSessions(keys))
+							.execute(endpoint, transport);
+
+			/*
+			 * Script tasks without output have no result,
+			 * their call succeeded.
+			 */
+			if(oResult == null || oResult.success() ||
+				!expired(args, keys, endpoint, transport))
+				break;
+		}
+
+		return oResult;
+	}
+
+	/**
+	 * Returns the number of session keys cached.
+	 * @return number of session keys cached
+	 */
+	public int sessions() {
+		synchronized(sessions) {
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * Returns the number of dataset uploads made.
+	 * @return number of dataset uploads
+	 */
+	public long uploads() {
+		return uploads.get();
+	}
+
+	/*
+	 * Resolve the session key holding the dataset on the endpoint,
+	 * uploading the dataset when not cached. Concurrent callers
+	 * share a single upload.
+	 */
+	private String session(final String name,
+						   final String endpoint,
+						   final OCPUTransport transport) throws OCPUException {
+
+		final String data = datasets.get(name);
+		if(data == null)
+			throw new OCPUException("Dataset " + name + " not pinned.");
+
+		String key = key(name, endpoint);
+		FutureTask<String> upload = null;
+		boolean owner = false;
+
+		synchronized(sessions) {
+			upload = sessions.get(key);
+			if(upload == null) {
+				upload = new FutureTask<String>(new Callable<String>() {
+					public String call() throws Exception {
+						uploads.incrementAndGet();
+						BaseTask identity = new LibraryTask(null,
+							"base", "identity", false, data, null);
+						return identity.session(endpoint, transport);
+					}
+				});
+				sessions.put(key, upload);
+				owner = true;
+			}
+		}
+
+		if(owner)
+			upload.run();
+
+		try {
+			return upload.get();
+		} catch(InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			throw new OCPUException("Dataset " + name + " interrupted.", iex);
+		} catch(ExecutionException eex) {
+			evict(name, upload);
+			throw new OCPUException("Dataset " + name + " upload failed.",
+									eex.getCause());
+		}
+	}
+
+	/*
+	 * Determine if the failure of a call may be caused by expiry of
+	 * a session, evicting expired sessions so they are uploaded again.
+	 */
+	private boolean expired(Map<String, String> args,
+							Map<String, String> keys,
+							String endpoint,
+							OCPUTransport transport) {
+
+		boolean expired = false;
+
+		for(Map.Entry<String, String> arg : args.entrySet()) {
+
+			String ocpuSession = keys.get(arg.getKey());
+			OCPUResponse resp = null;
+			int status;
+
+			try {
+				resp = transport.send(new OCPURequest("GET",
+					new URL(endpoint + BaseTask.OCPU_SESSION_BASE +
+						ocpuSession + SLASH),
+					JSON_TYPE, JSON_TYPE, (byte[]) null));
+				status = resp.status();
+			} catch(Exception ex) {
+				continue;
+			} finally {
+				if(resp != null) {
+					try {
+						resp.close();
+					} catch(Exception cex) {}
+				}
+			}
+
+			if(status == 404 || status == 410) {
+				synchronized(sessions) {
+					sessions.remove(key(arg.getValue(), endpoint));
+				}
+				expired = true;
+			}
+		}
+		return expired;
+	}
+
+	/*
+	 * Evict cached sessions of the dataset, on all endpoints when
+	 * upload is null, otherwise only the failed upload.
+	 */
+	private void evict(String name, FutureTask<String> upload) {
+
+		synchronized(sessions) {
+			Iterator<Map.Entry<String, FutureTask<String>>> it =
+										sessions.entrySet().iterator();
+			while(it.hasNext()) {
+				Map.Entry<String, FutureTask<String>> entry = it.next();
+				if(entry.getKey().endsWith("\n" + name) &&
+					(upload == null || entry.getValue() == upload))
+					it.remove();
+			}
+		}
+	}
+
+	private static String key(String name, String endpoint) {
+		return endpoint + "\n" + name;
+	}
+
+	private static final String JSON_TYPE = "application/json";
+
+}
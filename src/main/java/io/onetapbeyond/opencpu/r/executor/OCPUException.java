@@ -20,6 +20,8 @@
  */
 public class OCPUException extends Exception {
 
+	private int status;
+
 	public OCPUException() { super(); }
 
 	public OCPUException(String message) {
@@ -29,4 +31,18 @@ public class OCPUException extends Exception {
 	public OCPUException(String message, Throwable cause) {
 		super(message, cause);
 	}
+
+	public OCPUException(String message, int status) {
+		super(message);
+		this.status = status;
+	}
+
+	/**
+	 * Returns the HTTP status code returned by the OpenCPU server.
+	 * @return the HTTP status code, or zero when the failure
+	 * was not reported by the server.
+	 */
+	public int status() {
+		return status;
+	}
 }
\ No newline at end of file
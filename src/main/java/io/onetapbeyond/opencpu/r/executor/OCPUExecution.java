@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cancellable execution of an {@link OCPUTask}:
+ * <pre>
+ * {@code
+ * OCPUExecution execution = OCPUExecution.submit(oTask, endpoint, executor);
+ * ...
+ * execution.cancel(true);
+ * }
+ * </pre>
+ * <p>
+ * Cancelling an execution in flight aborts its HTTP exchange with the
+ * OpenCPU server, then deletes the OpenCPU sessions the execution
+ * created, so that abandoned R workspaces do not linger on the server
+ * until expiry. Session cleanup runs on the executing thread once the
+ * aborted call unwinds, {@link #cancel(boolean)} does not block.
+ */
+public final class OCPUExecution extends FutureTask<OCPUResult> {
+
+	private final String endpoint;
+	private final OCPUTransport transport;
+	private final Set<String> sessions =
+			Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<OCPURequest> inFlight =
+			Collections.newSetFromMap(new ConcurrentHashMap<OCPURequest, Boolean>());
+	private final Set<OCPUResponse> open =
+			Collections.newSetFromMap(new ConcurrentHashMap<OCPUResponse, Boolean>());
+	private final AtomicBoolean cleaned = new AtomicBoolean();
+	private final CountDownLatch exited = new CountDownLatch(1);
+	private final BlockingQueue<OCPUExecution> completion;
+	private volatile boolean started;
+	private volatile boolean aborted;
+	private volatile boolean finished;
+
+	private OCPUExecution(final OCPUTask task,
+						  final String endpoint,
+						  final OCPUTransport transport,
+						  final Tracker tracker,
+						  final BlockingQueue<OCPUExecution> completion) {
+		super(new Callable<OCPUResult>() {
+			public OCPUResult call() {
+				return task.execute(endpoint, tracker);
+			}
+		});
+		this.endpoint = endpoint;
+		this.transport = transport;
+		this.completion = completion;
+		tracker.execution = this;
+	}
+
+	/**
+	 * Submit the R task for execution on the endpoint.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the execution
+	 * @return the cancellable execution
+	 */
+	public static OCPUExecution submit(OCPUTask task,
+									   String endpoint,
+									   Executor executor) {
+		return submit(task, endpoint, executor, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Submit the R task for execution on the endpoint.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the execution
+	 * @param transport the transport making HTTP requests
+	 * @return the cancellable execution
+	 */
+	public static OCPUExecution submit(OCPUTask task,
+									   String endpoint,
+									   Executor executor,
+									   OCPUTransport transport) {
+		return submit(task, endpoint, executor, transport, null);
+	}
+
+	/*
+	 * Submit the R task, offering the execution to the completion
+	 * queue once done.
+	 */
+	static OCPUExecution submit(OCPUTask task,
+								String endpoint,
+								Executor executor,
+								OCPUTransport transport,
+								BlockingQueue<OCPUExecution> completion) {
+		OCPUExecution execution = new OCPUExecution(task, endpoint,
+							transport, new Tracker(transport), completion);
+		executor.execute(execution);
+		return execution;
+	}
+
+	/**
+	 * Returns the keys of OpenCPU sessions created by the execution.
+	 * @return the session keys
+	 */
+	public Set<String> sessions() {
+		return Collections.unmodifiableSet(sessions);
+	}
+
+	public void run() {
+		started = true;
+		try {
+			super.run();
+		} finally {
+			finished = true;
+			try {
+				if(aborted) {
+					/*
+					 * Clear the interrupt raised by cancel, so that
+					 * session cleanup requests can be made.
+					 */
+					Thread.interrupted();
+					cleanup();
+				}
+			} finally {
+				exited.countDown();
+			}
+		}
+	}
+
+	/*
+	 * Wait until the executing thread has left the execution,
+	 * including session cleanup of a cancelled execution. Returns
+	 * at once if the execution never started.
+	 */
+	void join() throws InterruptedException {
+		if(started)
+			exited.await();
+	}
+
+	protected void done() {
+		if(completion != null)
+			completion.offer(this);
+	}
+
+	/**
+	 * Cancel the execution, aborting the HTTP exchange in flight
+	 * and deleting OpenCPU sessions created by the execution.
+	 * @param mayInterruptIfRunning abort an execution in flight
+	 * @return false if the execution already completed
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+
+		if(!super.cancel(mayInterruptIfRunning))
+			return false;
+
+		aborted = true;
+
+		if(mayInterruptIfRunning) {
+			for(OCPURequest request : inFlight) {
+				request.abort();
+			}
+			for(OCPUResponse resp : open) {
+				close(resp);
+			}
+		}
+
+		if(finished)
+			cleanup();
+		return true;
+	}
+
+	/*
+	 * Delete sessions created by the cancelled execution, once.
+	 */
+	private void cleanup() {
+
+		if(!cleaned.compareAndSet(false, true))
+			return;
+
+		for(String session : sessions) {
+			OCPUResponse resp = null;
+			try {
+				resp = transport.send(new OCPURequest("DELETE",
+					new URL(endpoint + BaseTask.OCPU_SESSION_BASE +
+							session + "/"),
+					JSON_TYPE, JSON_TYPE, (byte[]) null));
+			} catch(Exception ex) {
+				// Best effort, sessions expire on the server.
+			} finally {
+				close(resp);
+			}
+		}
+	}
+
+	private static void close(OCPUResponse resp) {
+		if(resp != null) {
+			try {
+				resp.close();
+			} catch(Exception cex) {}
+		}
+	}
+
+	/*
+	 * Transport recording sessions created, requests in flight and
+	 * responses open during the execution, failing requests once
+	 * cancelled. A request stays in flight until its response is
+	 * closed, so cancel aborts only exchanges of this execution.
+	 */
+	private static final class Tracker implements OCPUTransport {
+
+		private final OCPUTransport transport;
+		private OCPUExecution execution;
+
+		private Tracker(OCPUTransport transport) {
+			this.transport = transport;
+		}
+
+		public OCPUResponse send(final OCPURequest request) throws IOException {
+
+			if(execution.aborted)
+				throw new InterruptedIOException("Task execution cancelled.");
+
+			execution.inFlight.add(request);
+			final OCPUResponse resp;
+			try {
+				resp = transport.send(request);
+			} catch(IOException ioex) {
+				execution.inFlight.remove(request);
+				throw ioex;
+			} catch(RuntimeException rex) {
+				execution.inFlight.remove(request);
+				throw rex;
+			}
+
+			String session = resp.header(OCPU_X_SESSION);
+			if(session != null)
+				execution.sessions.add(session);
+
+			OCPUResponse tracked = new OCPUResponse() {
+				public int status() {
+					return resp.status();
+				}
+				public String message() {
+					return resp.message();
+				}
+				public String header(String name) {
+					return resp.header(name);
+				}
+				public InputStream body() throws IOException {
+					return resp.body();
+				}
+				public void close() throws IOException {
+					execution.open.remove(this);
+					try {
+						resp.close();
+					} finally {
+						execution.inFlight.remove(request);
+					}
+				}
+			};
+			execution.open.add(tracked);
+
+			if(execution.aborted) {
+				close(tracked);
+				throw new InterruptedIOException("Task execution cancelled.");
+			}
+			return tracked;
+		}
+	}
+
+	private static final String OCPU_X_SESSION = "X-ocpu-session";
+	private static final String JSON_TYPE = "application/json";
+
+}
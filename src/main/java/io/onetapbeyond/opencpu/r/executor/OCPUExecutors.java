@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors running blocking {@link OCPUTask#execute(String)} calls,
+ * and structured fan-out and fan-in of R tasks:
+ * <pre>
+ * {@code
+ * ExecutorService executor = OCPUExecutors.newVirtualThreadExecutor();
+ * List<OCPUResult> results = OCPUExecutors.all(oTasks, endpoint, executor);
+ * }
+ * </pre>
+ * <p>
+ * On Java 21 or later {@link #newVirtualThreadExecutor()} runs each
+ * task on its own virtual thread, so tens of thousands of R calls can
+ * block on the OpenCPU server at once without tying up platform
+ * threads. Task executions hold no monitors while blocked on network
+ * I/O, so virtual threads are not pinned to their carrier threads.
+ * On earlier Java versions a cached pool of daemon platform threads
+ * is used instead.
+ * <p>
+ * {@link #all(List, String, Executor)} and
+ * {@link #first(List, String, Executor)} are structured: no task
+ * execution outlives the call. When the calling thread is interrupted
+ * outstanding executions are cancelled, aborting their HTTP exchanges
+ * as {@link OCPUExecution#cancel(boolean)} does, and the call returns
+ * once they have unwound.
+ */
+public final class OCPUExecutors {
+
+	private static final String VIRTUAL_THREAD_EXECUTOR =
+		"io.onetapbeyond.opencpu.r.executor.util.VirtualThreadExecutor";
+
+	private static final AtomicInteger threads = new AtomicInteger();
+
+	private OCPUExecutors() {}
+
+	/**
+	 * Returns true when {@link #newVirtualThreadExecutor()} runs
+	 * tasks on virtual threads, on Java 21 or later.
+	 * @return true if virtual threads are available
+	 */
+	public static boolean virtualThreads() {
+		try {
+			Class.forName(VIRTUAL_THREAD_EXECUTOR);
+			return true;
+		} catch(Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Create an executor starting a new virtual thread for each task
+	 * on Java 21 or later, otherwise an executor using a cached pool
+	 * of daemon platform threads.
+	 * @return the executor, shut down by the caller
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService)
+				Class.forName(VIRTUAL_THREAD_EXECUTOR).newInstance();
+		} catch(Throwable t) {
+			// Java 21 code path unavailable, fallback.
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ocpu-executor-" +
+											threads.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Execute the R tasks concurrently and wait for all of them.
+	 * @param tasks the R tasks
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the tasks
+	 * @return the results of the R tasks, in task order
+	 * @throws InterruptedException if interrupted while waiting,
+	 * outstanding executions are cancelled
+	 */
+	public static List<OCPUResult> all(List<? extends OCPUTask> tasks,
+									   String endpoint,
+									   Executor executor)
+									   throws InterruptedException {
+		return all(tasks, endpoint, executor, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R tasks concurrently and wait for all of them.
+	 * @param tasks the R tasks
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the tasks
+	 * @param transport the transport making HTTP requests
+	 * @return the results of the R tasks, in task order
+	 * @throws InterruptedException if interrupted while waiting,
+	 * outstanding executions are cancelled
+	 */
+	public static List<OCPUResult> all(List<? extends OCPUTask> tasks,
+									   String endpoint,
+									   Executor executor,
+									   OCPUTransport transport)
+									   throws InterruptedException {
+
+		List<OCPUExecution> executions = fork(tasks, endpoint,
+											  executor, transport, null);
+		List<OCPUResult> results = new ArrayList<OCPUResult>();
+
+		try {
+			for(OCPUExecution execution : executions)
+				results.add(execution.get());
+		} catch(InterruptedException iex) {
+			shutdown(executions);
+			throw iex;
+		} catch(ExecutionException eex) {
+			shutdown(executions);
+			throw new IllegalStateException(eex.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * Execute the R tasks concurrently and return the first successful
+	 * result, cancelling the remaining executions.
+	 * @param tasks the R tasks, for example the same R call on
+	 * alternative R packages
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the tasks
+	 * @return the first successful result, null when it is a script
+	 * task without output, or the last failed result when no task
+	 * succeeds
+	 * @throws InterruptedException if interrupted while waiting,
+	 * outstanding executions are cancelled
+	 */
+	public static OCPUResult first(List<? extends OCPUTask> tasks,
+								   String endpoint,
+								   Executor executor)
+								   throws InterruptedException {
+		return first(tasks, endpoint, executor, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R tasks concurrently and return the first successful
+	 * result, cancelling the remaining executions.
+	 * @param tasks the R tasks, for example the same R call on
+	 * alternative R packages
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the tasks
+	 * @param transport the transport making HTTP requests
+	 * @return the first successful result, null when it is a script
+	 * task without output, or the last failed result when no task
+	 * succeeds
+	 * @throws InterruptedException if interrupted while waiting,
+	 * outstanding executions are cancelled
+	 */
+	public static OCPUResult first(List<? extends OCPUTask> tasks,
+								   String endpoint,
+								   Executor executor,
+								   OCPUTransport transport)
+								   throws InterruptedException {
+
+		if(tasks.isEmpty())
+			throw new IllegalArgumentException("no tasks");
+
+		BlockingQueue<OCPUExecution> completion =
+							new LinkedBlockingQueue<OCPUExecution>();
+		List<OCPUExecution> executions = fork(tasks, endpoint,
+											  executor, transport, completion);
+		OCPUResult oResult = null;
+
+		try {
+			for(int done = 0; done < executions.size(); done++) {
+				oResult = completion.take().get();
+				/*
+				 * Script tasks without output have no result,
+				 * their call succeeded.
+				 */
+				if(oResult == null || oResult.success())
+					break;
+			}
+		} catch(ExecutionException eex) {
+			throw new IllegalStateException(eex.getCause());
+		} finally {
+			shutdown(executions);
+		}
+		return oResult;
+	}
+
+	private static List<OCPUExecution> fork(List<? extends OCPUTask> tasks,
+									String endpoint,
+									Executor executor,
+									OCPUTransport transport,
+									BlockingQueue<OCPUExecution> completion) {
+
+		List<OCPUExecution> executions = new ArrayList<OCPUExecution>();
+
+		try {
+			for(OCPUTask task : tasks) {
+				executions.add(OCPUExecution.submit(task, endpoint,
+									executor, transport, completion));
+			}
+		} catch(RuntimeException rex) {
+			shutdown(executions);
+			throw rex;
+		}
+		return executions;
+	}
+
+	/*
+	 * Cancel outstanding executions and wait for them to unwind,
+	 * preserving the interrupt status of the calling thread.
+	 */
+	private static void shutdown(List<OCPUExecution> executions) {
+
+		boolean interrupted = Thread.interrupted();
+
+		for(OCPUExecution execution : executions)
+			execution.cancel(true);
+
+		for(OCPUExecution execution : executions) {
+			for(;;) {
+				try {
+					execution.join();
+					break;
+				} catch(InterruptedException iex) {
+					interrupted = true;
+				}
+			}
+		}
+
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+}
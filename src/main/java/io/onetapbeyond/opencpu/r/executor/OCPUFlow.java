@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+/**
+ * Reactive streams interfaces used to push data through R with
+ * backpressure. The interfaces mirror the method signatures of
+ * <i>java.util.concurrent.Flow</i> and the Reactive Streams
+ * specification so adapting them on newer Java platforms is a
+ * matter of delegation. On Java 11 or later <i>OCPUFlows</i>
+ * adapts processors, publishers and subscribers to
+ * <i>java.util.concurrent.Flow</i>.
+ */
+public final class OCPUFlow {
+
+	private OCPUFlow() {}
+
+	/**
+	 * Producer of items received by {@link Subscriber} on demand.
+	 * @param <T> the published item type
+	 */
+	public static interface Publisher<T> {
+
+		/**
+		 * Add the subscriber to this publisher.
+		 * @param subscriber the subscriber
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of items from a {@link Publisher}.
+	 * @param <T> the subscribed item type
+	 */
+	public static interface Subscriber<T> {
+
+		/**
+		 * Invoked once, ahead of any other method, with the
+		 * subscription used to signal demand.
+		 * @param subscription the subscription
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Invoked with the next item, never more often than requested.
+		 * @param item the item
+		 */
+		public void onNext(T item);
+
+		/**
+		 * Invoked on unrecoverable error, no further methods
+		 * are invoked.
+		 * @param throwable the error
+		 */
+		public void onError(Throwable throwable);
+
+		/**
+		 * Invoked once all items have been delivered, no further
+		 * methods are invoked.
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * Demand signalled by a {@link Subscriber} to its {@link Publisher}.
+	 */
+	public static interface Subscription {
+
+		/**
+		 * Request up to n more items.
+		 * @param n the number of items, must be positive
+		 */
+		public void request(long n);
+
+		/**
+		 * Stop receiving items.
+		 */
+		public void cancel();
+	}
+
+	/**
+	 * Stage acting as both {@link Subscriber} and {@link Publisher}.
+	 * @param <T> the subscribed item type
+	 * @param <R> the published item type
+	 */
+	public static interface Processor<T,R>
+							extends Subscriber<T>, Publisher<R> {
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+/**
+ * Memory budget shared by concurrent {@link OCPUTask} executions,
+ * bounding the bytes in flight rather than the number of tasks:
+ * <pre>
+ * {@code
+ * OCPUMemoryBudget budget =
+ *     new OCPUMemoryBudget(512L << 20, 1L << 20, 30000L);
+ * OCPUResult oResult = budget.execute(oTask, endpoint);
+ * }
+ * </pre>
+ * <p>
+ * Each execution reserves the estimated size of its encoded input
+ * data plus a response reservation before it starts. Response bytes
+ * streamed beyond the reservation are charged as they are read, so
+ * an execution receiving a large response holds back new executions
+ * until it completes. When the budget is exhausted new executions
+ * wait up to <i>maxWaitMillis</i>, then fail with an
+ * {@link OCPUException}. Combine with {@link OCPU#maxResponseSize(long)}
+ * to bound the response of any single execution.
+ */
+public class OCPUMemoryBudget {
+
+	private final long maxBytes;
+	private final long responseReserve;
+	private final long maxWaitMillis;
+	private final AtomicLong rejected = new AtomicLong();
+	/*
+	 * Explicit lock rather than a monitor, waiting executions
+	 * park without pinning virtual threads.
+	 */
+	private final Lock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private long used;
+	private long peak;
+
+	/**
+	 * Create a memory budget.
+	 * @param maxBytes the budget in bytes across all executions
+	 * @param responseReserve bytes reserved for the response of
+	 * each execution when it starts
+	 * @param maxWaitMillis time (ms) a new execution waits for the
+	 * budget, zero to fail immediately when the budget is exhausted
+	 */
+	public OCPUMemoryBudget(long maxBytes,
+							long responseReserve,
+							long maxWaitMillis) {
+		if(maxBytes < 1)
+			throw new IllegalArgumentException("maxBytes < 1");
+		this.maxBytes = maxBytes;
+		this.responseReserve = responseReserve;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Execute the R task on the endpoint within the memory budget.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the endpoint within the memory budget.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		long inputBytes = 0L;
+		long reserve = responseReserve;
+		boolean metered = true;
+
+		if(task instanceof BaseTask) {
+			BaseTask baseTask = (BaseTask) task;
+			long maxResponse = baseTask.options().maxResponseSize();
+			inputBytes = baseTask.inputBytes();
+			if(maxResponse > 0)
+				reserve = Math.min(reserve, maxResponse);
+			/*
+			 * Outputs streamed to disk never reach the heap.
+			 */
+			metered = (baseTask.options().outputFile() == null);
+		}
+
+		long reservation = Math.min(maxBytes, inputBytes + reserve);
+
+		try {
+			acquire(reservation);
+		} catch(InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			return failed(new OCPUException("Memory budget wait interrupted.", iex));
+		} catch(OCPUException oex) {
+			return failed(oex);
+		}
+
+		MeteredTransport meter =
+			new MeteredTransport(transport, reservation - inputBytes);
+
+		try {
+			return task.execute(endpoint, metered ? meter : transport);
+		} finally {
+			release(reservation + meter.overdraft.get());
+		}
+	}
+
+	/**
+	 * Returns the bytes currently reserved or charged.
+	 * @return bytes in use
+	 */
+	public long used() {
+		lock.lock();
+		try {
+			return used;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the highest number of bytes in use at once.
+	 * @return peak bytes in use
+	 */
+	public long peak() {
+		lock.lock();
+		try {
+			return peak;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of executions failed as the budget
+	 * remained exhausted.
+	 * @return number of rejected executions
+	 */
+	public long rejected() {
+		return rejected.get();
+	}
+
+	/*
+	 * Reserve bytes, waiting while the budget is exhausted. A single
+	 * execution is always admitted when nothing else is in flight.
+	 */
+	private void acquire(long bytes)
+					throws OCPUException, InterruptedException {
+
+		long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+		lock.lock();
+		try {
+			while(used > 0 && used + bytes > maxBytes) {
+				if(remaining <= 0) {
+					rejected.incrementAndGet();
+					throw new OCPUException("Memory budget of " + maxBytes +
+											" bytes exhausted.");
+				}
+				remaining = released.awaitNanos(remaining);
+			}
+			charge(bytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void charge(long bytes) {
+		lock.lock();
+		try {
+			used += bytes;
+			if(used > peak)
+				peak = used;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(long bytes) {
+		lock.lock();
+		try {
+			used -= bytes;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static OCPUResult failed(OCPUException oex) {
+		return new OCPUResultImpl(false, null, null,
+					"Task execution failed.", oex, 0L);
+	}
+
+	/*
+	 * Transport charging response bytes read beyond the response
+	 * reservation of an execution to the budget.
+	 */
+	private final class MeteredTransport implements OCPUTransport {
+
+		private final OCPUTransport transport;
+		private final long allowance;
+		private final AtomicLong streamed = new AtomicLong();
+		private final AtomicLong overdraft = new AtomicLong();
+
+		private MeteredTransport(OCPUTransport transport, long allowance) {
+			this.transport = transport;
+			this.allowance = allowance;
+		}
+
+		public OCPUResponse send(OCPURequest request) throws IOException {
+
+			final OCPUResponse resp = transport.send(request);
+
+			return new OCPUResponse() {
+				public int status() {
+					return resp.status();
+				}
+				public String message() {
+					return resp.message();
+				}
+				public String header(String name) {
+					return resp.header(name);
+				}
+				public InputStream body() throws IOException {
+					return new FilterInputStream(resp.body()) {
+						public int read() throws IOException {
+							int b = super.read();
+							if(b >= 0)
+								meter(1);
+							return b;
+						}
+						public int read(byte[] b, int off, int len)
+												throws IOException {
+							int n = super.read(b, off, len);
+							if(n > 0)
+								meter(n);
+							return n;
+						}
+					};
+				}
+				public void close() throws IOException {
+					resp.close();
+				}
+			};
+		}
+
+		private void meter(long bytes) {
+			long over = streamed.addAndGet(bytes) - allowance;
+			if(over > 0) {
+				long charged = overdraft.get();
+				if(over > charged && overdraft.compareAndSet(charged, over))
+					charge(over - charged);
+			}
+		}
+	}
+
+}
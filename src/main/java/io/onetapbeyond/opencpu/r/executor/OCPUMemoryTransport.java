@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-memory {@link OCPUTransport} answering requests with canned
+ * responses, for testing code that executes {@link OCPUTask} without
+ * an OpenCPU server:
+ * <pre>
+ * {@code
+ * OCPUMemoryTransport transport = new OCPUMemoryTransport()
+ *     .reply("POST", "/library/stats/R/rnorm/json", 200, "[4.2,5.1]");
+ * OCPUResult oResult = oTask.execute(endpoint, transport);
+ * }
+ * </pre>
+ * <p>
+ * Replies match on HTTP method and on the end of the request URL
+ * path, so the OpenCPU server endpoint is irrelevant. Requests with
+ * no matching reply receive HTTP 404. All requests are recorded.
+ */
+public class OCPUMemoryTransport implements OCPUTransport {
+
+	private final List<Reply> replies = new CopyOnWriteArrayList<Reply>();
+	private final Queue<OCPURequest> requests =
+							new ConcurrentLinkedQueue<OCPURequest>();
+
+	/**
+	 * Register a canned response.
+	 *
+	 * @param method the HTTP method matched.
+	 * @param path the end of the URL path matched.
+	 * @param status the HTTP status code of the response.
+	 * @param body the response body.
+	 * @param headers response header name and value pairs,
+	 * for example "X-ocpu-session", "x0a1b2c3d".
+	 * @return this {@link OCPUMemoryTransport}.
+	 */
+	public OCPUMemoryTransport reply(String method, String path,
+									 int status, String body,
+									 String... headers) {
+		if(headers.length % 2 != 0)
+			throw new IllegalArgumentException("Header without value.");
+		replies.add(0, new Reply(method, path, status, body, headers));
+		return this;
+	}
+
+	/**
+	 * Returns the requests received, in order.
+	 * @return the requests received
+	 */
+	public List<OCPURequest> requests() {
+		return new ArrayList<OCPURequest>(requests);
+	}
+
+	public OCPUResponse send(OCPURequest request) throws IOException {
+
+		requests.offer(request);
+
+		String path = request.url().getPath();
+
+		for(Reply reply : replies) {
+			if(reply.method.equals(request.method()) &&
+				path.endsWith(reply.path))
+				return reply.response();
+		}
+		return new Reply(request.method(), path,
+						 404, "Not Found", new String[0]).response();
+	}
+
+	/*
+	 * Canned response registered on the transport.
+	 */
+	private static class Reply {
+
+		private final String method;
+		private final String path;
+		private final int status;
+		private final byte[] body;
+		private final Map<String, String> headers =
+								new HashMap<String, String>();
+
+		private Reply(String method, String path, int status,
+					  String body, String[] headers) {
+			this.method = method;
+			this.path = path;
+			this.status = status;
+			this.body = (body != null) ? utf8(body) : new byte[0];
+			for(int h = 0; h < headers.length; h = h + 2)
+				this.headers.put(headers[h].toLowerCase(), headers[h+1]);
+		}
+
+		private OCPUResponse response() {
+			return new OCPUResponse() {
+				public int status() {
+					return status;
+				}
+				public String message() {
+					return (status < 400) ? "OK" : "Error";
+				}
+				public String header(String name) {
+					return headers.get(name.toLowerCase());
+				}
+				public InputStream body() {
+					return new ByteArrayInputStream(body);
+				}
+				public void close() {}
+			};
+		}
+
+		private static byte[] utf8(String text) {
+			try {
+				return text.getBytes("UTF-8");
+			} catch(UnsupportedEncodingException uex) {
+				throw new IllegalStateException(uex);
+			}
+		}
+	}
+
+}
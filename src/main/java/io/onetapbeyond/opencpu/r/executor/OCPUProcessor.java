@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Reactive streams stage executing a stream of {@link OCPUTask}, or
+ * of input data bound to an {@link OCPUTemplate}, and publishing the
+ * {@link OCPUResult} of each downstream:
+ * <pre>
+ * {@code
+ * OCPUProcessor<OCPUTask> oProcessor =
+ *     OCPUProcessor.tasks(endpoint, executor, 16, true);
+ * taskPublisher.subscribe(oProcessor);
+ * oProcessor.subscribe(resultSubscriber);
+ * }
+ * </pre>
+ * <p>
+ * At most <i>maxConcurrency</i> items are requested from upstream
+ * ahead of downstream demand, so executions in flight plus results
+ * awaiting demand never exceed that bound. In ordered mode results
+ * are published in the order items were received, otherwise
+ * as executions complete. Failed executions are published as
+ * failed {@link OCPUResult}, only upstream errors terminate the
+ * stream with an error.
+ *
+ * @param <T> the subscribed item type, {@link OCPUTask} or
+ * {@link java.util.Map} input data.
+ */
+public final class OCPUProcessor<T>
+					implements OCPUFlow.Processor<T, OCPUResult> {
+
+	private final String endpoint;
+	private final OCPUTemplate template;
+	private final Executor executor;
+	private final int maxConcurrency;
+	private final boolean ordered;
+
+	private final ConcurrentMap<Long, OCPUResult> completed =
+							new ConcurrentHashMap<Long, OCPUResult>();
+	private final Queue<OCPUResult> unordered =
+							new ConcurrentLinkedQueue<OCPUResult>();
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger wip = new AtomicInteger();
+	private final AtomicReference<OCPUFlow.Subscriber<? super OCPUResult>>
+		downstream = new AtomicReference<OCPUFlow.Subscriber<? super OCPUResult>>();
+
+	private volatile OCPUFlow.Subscription upstream;
+	private volatile boolean done;
+	private volatile boolean cancelled;
+	private volatile Throwable error;
+	private volatile Throwable fatal;
+	private long received;
+	private long emitted;
+
+	private OCPUProcessor(String endpoint,
+						  OCPUTemplate template,
+						  Executor executor,
+						  int maxConcurrency,
+						  boolean ordered) {
+		if(maxConcurrency < 1)
+			throw new IllegalArgumentException("maxConcurrency < 1");
+		this.endpoint = endpoint;
+		this.template = template;
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Create a processor executing a stream of {@link OCPUTask}.
+	 *
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running each task execution
+	 * @param maxConcurrency bound on executions in flight plus
+	 * results awaiting downstream demand
+	 * @param ordered publish results in the order tasks were received
+	 * @return {@link OCPUProcessor} instance
+	 */
+	public static OCPUProcessor<OCPUTask> tasks(String endpoint,
+												Executor executor,
+												int maxConcurrency,
+												boolean ordered) {
+		return new OCPUProcessor<OCPUTask>(endpoint, null,
+							executor, maxConcurrency, ordered);
+	}
+
+	/**
+	 * Create a processor binding a stream of input data to
+	 * the {@link OCPUTemplate} and executing the resulting tasks
+	 * on the template endpoint.
+	 *
+	 * @param template the prepared R task template
+	 * @param executor executor running each task execution
+	 * @param maxConcurrency bound on executions in flight plus
+	 * results awaiting downstream demand
+	 * @param ordered publish results in the order inputs were received
+	 * @return {@link OCPUProcessor} instance
+	 */
+	public static OCPUProcessor<Map> inputs(OCPUTemplate template,
+											Executor executor,
+											int maxConcurrency,
+											boolean ordered) {
+		return new OCPUProcessor<Map>(template.endpoint(), template,
+							executor, maxConcurrency, ordered);
+	}
+
+	public void onSubscribe(OCPUFlow.Subscription subscription) {
+		if(upstream != null || cancelled) {
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		subscription.request(maxConcurrency);
+	}
+
+	public void onNext(T item) {
+
+		if(done || cancelled)
+			return;
+
+		final long seq = received++;
+		inFlight.incrementAndGet();
+
+		try {
+			final OCPUTask task = task(item);
+			executor.execute(new Runnable() {
+				public void run() {
+					/*
+					 * Every received item completes its sequence
+					 * number, or an ordered stream stalls on it.
+					 */
+					OCPUResult oResult = null;
+					try {
+						oResult = task.execute(endpoint);
+					} catch(Exception ex) {
+						oResult = failure(ex);
+					} catch(Error err) {
+						oResult = failure(new OCPUException(
+										"Task execution failed.", err));
+						throw err;
+					} finally {
+						complete(seq, (oResult != null) ? oResult :
+							failure(new OCPUException("Task has no result.")));
+					}
+				}
+			});
+		} catch(Exception ex) {
+			complete(seq, failure(ex));
+		}
+	}
+
+	private static OCPUResult failure(Exception ex) {
+		return new OCPUResultImpl(false, null, null,
+					"Task execution failed.", ex, 0L);
+	}
+
+	public void onError(Throwable throwable) {
+		error = throwable;
+		done = true;
+		drain();
+	}
+
+	public void onComplete() {
+		done = true;
+		drain();
+	}
+
+	public void subscribe(OCPUFlow.Subscriber<? super OCPUResult> subscriber) {
+
+		if(!downstream.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(new OCPUFlow.Subscription() {
+				public void request(long n) {}
+				public void cancel() {}
+			});
+			subscriber.onError(
+				new IllegalStateException("Processor already subscribed."));
+			return;
+		}
+
+		subscriber.onSubscribe(new OCPUFlow.Subscription() {
+
+			public void request(long n) {
+				if(n <= 0) {
+					OCPUFlow.Subscription s = upstream;
+					if(s != null)
+						s.cancel();
+					fatal = new IllegalArgumentException(
+						"Non-positive request " + n + ".");
+				} else {
+					long r, u;
+					do {
+						r = requested.get();
+						u = r + n;
+						if(u < 0)
+							u = Long.MAX_VALUE;
+					} while(!requested.compareAndSet(r, u));
+				}
+				drain();
+			}
+
+			public void cancel() {
+				cancelled = true;
+				OCPUFlow.Subscription s = upstream;
+				if(s != null)
+					s.cancel();
+			}
+		});
+		drain();
+	}
+
+	private OCPUTask task(T item) throws OCPUException {
+		if(template != null)
+			return template.bind((Map) item);
+		return (OCPUTask) item;
+	}
+
+	private void complete(long seq, OCPUResult oResult) {
+		if(ordered)
+			completed.put(seq, oResult);
+		else
+			unordered.offer(oResult);
+		inFlight.decrementAndGet();
+		drain();
+	}
+
+	private OCPUResult poll() {
+		if(!ordered)
+			return unordered.poll();
+		OCPUResult next = completed.remove(emitted);
+		if(next != null)
+			emitted++;
+		return next;
+	}
+
+	private boolean pending() {
+		return ordered ? !completed.isEmpty() : !unordered.isEmpty();
+	}
+
+	/*
+	 * Publish results downstream as demand allows. Only one thread
+	 * drains at a time, others record the missed drain and leave.
+	 */
+	private void drain() {
+
+		OCPUFlow.Subscriber<? super OCPUResult> subscriber = downstream.get();
+
+		if(subscriber == null || wip.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+
+		for(;;) {
+
+			if(fatal != null && !cancelled) {
+				cancelled = true;
+				subscriber.onError(fatal);
+				return;
+			}
+
+			long r = requested.get();
+			long e = 0L;
+
+			while(e != r) {
+
+				if(cancelled) {
+					completed.clear();
+					unordered.clear();
+					return;
+				}
+
+				OCPUResult next = poll();
+				if(next == null)
+					break;
+
+				subscriber.onNext(next);
+				e++;
+
+				OCPUFlow.Subscription s = upstream;
+				if(s != null && !done)
+					s.request(1);
+			}
+
+			if(e != 0L && r != Long.MAX_VALUE)
+				requested.addAndGet(-e);
+
+			if(cancelled)
+				return;
+
+			if(done && inFlight.get() == 0 && !pending()) {
+				cancelled = true;
+				if(error != null)
+					subscriber.onError(error);
+				else
+					subscriber.onComplete();
+				return;
+			}
+
+			missed = wip.addAndGet(-missed);
+			if(missed == 0)
+				break;
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HTTP request made on the OpenCPU server by an {@link OCPUTask}
+ * through an {@link OCPUTransport}.
+ */
+public final class OCPURequest {
+
+	private final String method;
+	private final URL url;
+	private final String contentType;
+	private final String accept;
+	private final byte[] body;
+	private final Content content;
+	private volatile Closeable abort;
+	private volatile boolean aborted;
+
+	/**
+	 * Create an {@link OCPURequest}.
+	 *
+	 * @param method the HTTP method, POST or GET.
+	 * @param url the OpenCPU API call.
+	 * @param contentType the request content type.
+	 * @param accept the accepted response content types.
+	 * @param body the request body, null when there is no body.
+	 */
+	public OCPURequest(String method, URL url,
+					   String contentType, String accept, byte[] body) {
+		this.method = method;
+		this.url = url;
+		this.contentType = contentType;
+		this.accept = accept;
+		this.body = body;
+		this.content = null;
+	}
+
+	/**
+	 * Create an {@link OCPURequest} with a streamed body.
+	 *
+	 * @param method the HTTP method, POST or GET.
+	 * @param url the OpenCPU API call.
+	 * @param contentType the request content type.
+	 * @param accept the accepted response content types.
+	 * @param content the request body written on demand.
+	 */
+	public OCPURequest(String method, URL url,
+					   String contentType, String accept, Content content) {
+		this.method = method;
+		this.url = url;
+		this.contentType = contentType;
+		this.accept = accept;
+		this.body = null;
+		this.content = content;
+	}
+
+	/**
+	 * Returns the HTTP method of the request.
+	 * @return the HTTP method
+	 */
+	public String method() {
+		return method;
+	}
+
+	/**
+	 * Returns the URL of the OpenCPU API call.
+	 * @return the request URL
+	 */
+	public URL url() {
+		return url;
+	}
+
+	/**
+	 * Returns the content type of the request body.
+	 * @return the request content type
+	 */
+	public String contentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the content types accepted on the response.
+	 * @return the accepted response content types
+	 */
+	public String accept() {
+		return accept;
+	}
+
+	/**
+	 * Returns the request body. The array is shared, not copied,
+	 * and must not be modified.
+	 * @return the request body, null when there is no body
+	 */
+	public byte[] body() {
+		return body;
+	}
+
+	/**
+	 * Returns the streamed request body.
+	 * @return the request body written on demand, null when the
+	 * request has an in-memory or no body
+	 */
+	public Content content() {
+		return content;
+	}
+
+	/**
+	 * Register how the transport aborts the exchange of this request
+	 * while it is in flight, for example by disconnecting. Transports
+	 * register on sending the request and clear the registration once
+	 * the response is closed. The exchange is aborted at once if the
+	 * request was already aborted.
+	 * @param abort closed to abort the exchange, null to clear
+	 */
+	public void onAbort(Closeable abort) {
+		this.abort = abort;
+		if(aborted)
+			abort();
+	}
+
+	/**
+	 * Abort the exchange of this request, used to cancel an execution
+	 * in flight. Has no effect on transports that do not register an
+	 * abort, and once the response is closed.
+	 */
+	public void abort() {
+		aborted = true;
+		Closeable exchange = abort;
+		if(exchange != null) {
+			try {
+				exchange.close();
+			} catch(IOException iex) {}
+		}
+	}
+
+	public String toString() {
+		return method + " " + url;
+	}
+
+	/**
+	 * Request body of known length streamed onto the transport,
+	 * for bodies that should not be held in memory.
+	 */
+	public static interface Content {
+
+		/**
+		 * Returns the length of the body in bytes.
+		 * @return the body length
+		 * @throws IOException if the length can not be determined
+		 */
+		public long length() throws IOException;
+
+		/**
+		 * Write the body to the target channel. A body may be
+		 * written more than once, for example on retry.
+		 * @param target the channel receiving the body
+		 * @throws IOException if the body can not be written
+		 */
+		public void writeTo(WritableByteChannel target) throws IOException;
+	}
+
+}
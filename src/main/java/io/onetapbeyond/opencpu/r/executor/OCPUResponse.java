@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.io.*;
+
+/**
+ * HTTP response returned by an {@link OCPUTransport}. The response
+ * must be closed once the body has been consumed.
+ */
+public interface OCPUResponse extends Closeable {
+
+	/**
+	 * Returns the HTTP status code of the response.
+	 * @return the HTTP status code
+	 */
+	public int status();
+
+	/**
+	 * Returns the HTTP status message of the response.
+	 * @return the HTTP status message, or null when the
+	 * protocol carries no reason phrase.
+	 */
+	public String message();
+
+	/**
+	 * Returns the value of the named response header.
+	 * @param name the header name
+	 * @return the header value, or null when not present
+	 */
+	public String header(String name);
+
+	/**
+	 * Returns the response body as a stream.
+	 * @return the response body
+	 * @throws IOException if the response body can not be read
+	 */
+	public InputStream body() throws IOException;
+
+}
@@ -15,6 +15,9 @@
  */
 package io.onetapbeyond.opencpu.r.executor;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Path;
 import java.util.Map;
 
 /**
@@ -22,6 +25,11 @@ import java.util.Map;
  * <p>
  * All {@link OCPUTask} are serializable making them compatible
  * with Java cluster computing solutions, such as <i>Apache Spark</i>.
+ * <p>
+ * Version 2.0 added the typed {@link #output(String, Class)} and
+ * {@link #output(String, Type)}, {@link #file(String)} and
+ * {@link #vector(String)}. Implementations outside this library
+ * written against version 1.x must implement them.
  */
 public interface OCPUResult extends java.io.Serializable {
 
@@ -68,4 +76,54 @@ public interface OCPUResult extends java.io.Serializable {
 	 */
 	public Map output();
 
+	/**
+	 * Return a data output generated on task execution bound
+	 * to the type, for example a POJO or an array of POJO. The JSON
+	 * data is decoded directly into the type using an adapter cached
+	 * per type, no {@link java.util.Map} representation is built.
+	 *
+	 * @param <T> the type of the data output.
+	 * @param name the R function or R script object name.
+	 * @param type the class of the data output.
+	 * @return the data output, or null when there is no such output.
+	 * @throws OCPUException if the data output can not be bound to the type.
+	 */
+	public <T> T output(String name, Class<T> type) throws OCPUException;
+
+	/**
+	 * Return a data output generated on task execution bound
+	 * to the generic type, for example a {@code List<Person>} type
+	 * captured using {@link com.google.gson.reflect.TypeToken}.
+	 *
+	 * @param <T> the type of the data output.
+	 * @param name the R function or R script object name.
+	 * @param type the type of the data output.
+	 * @return the data output, or null when there is no such output.
+	 * @throws OCPUException if the data output can not be bound to the type.
+	 */
+	public <T> T output(String name, Type type) throws OCPUException;
+
+	/**
+	 * Return the file holding a data output streamed to disk on
+	 * task execution, see {@link OCPU#outputFile(Path)}.
+	 *
+	 * @param name the R function or R script object name.
+	 * @return the file holding the data output, or null when the
+	 * data output was not streamed to disk.
+	 */
+	public Path file(String name);
+
+	/**
+	 * Return a memory-mapped view of a numeric vector data output
+	 * streamed to disk on task execution, see
+	 * {@link OCPU#outputFile(Path)}. Elements are parsed
+	 * lazily on access.
+	 *
+	 * @param name the R function or R script object name.
+	 * @return {@link OCPUVector} view of the data output, or null
+	 * when the data output was not streamed to disk.
+	 * @throws IOException if the file can not be mapped.
+	 */
+	public OCPUVector vector(String name) throws IOException;
+
 }
@@ -0,0 +1,591 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import static io.onetapbeyond.opencpu.r.executor.util.OCPUConstants.*;
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import io.onetapbeyond.opencpu.r.executor.tasks.TaskOptions;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUObjectInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of {@link OCPUResult} on local disk, consulted
+ * before an {@link OCPUTask} makes its R call so the results of
+ * expensive computations survive restarts of the JVM:
+ * <pre>
+ * {@code
+ * OCPUResultStore store = new OCPUResultStore(Paths.get("cache"), 1L << 30);
+ * OCPUResult oResult = store.execute(oTask, endpoint);
+ * ...
+ * store.close();
+ * }
+ * </pre>
+ * <p>
+ * Results are keyed by a SHA-256 hash of the task signature: the R
+ * call, the server endpoint, the input data, the response size limit
+ * and the retention mode of the task. Only successful results of
+ * tasks without file, dataset or session arguments and without an
+ * output file are stored, other tasks always make their R call.
+ * Identical tasks missing the store concurrently make a single R call
+ * and share its result, see {@link OCPUSingleFlight}.
+ * <p>
+ * Results are appended to a single log file in the directory, each
+ * record carrying a CRC32 checksum and forced to disk before it is
+ * indexed. On open the log is scanned to rebuild the in-memory index
+ * and truncated at the first torn or corrupt record, left by a crash
+ * mid-write. A record failing its checksum on read is evicted and the
+ * R call is made. When the log exceeds its size cap the most recently
+ * used results are copied to a new log, atomically renamed over the
+ * old one, evicting the least recently used results.
+ */
+public class OCPUResultStore implements Closeable {
+
+	private final Path log;
+	private final Path tmp;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	private final ConcurrentMap<String, Entry> index =
+								new ConcurrentHashMap<String, Entry>();
+	/*
+	 * Reads and appends share the log, compaction replaces it.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Lock append = new ReentrantLock();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final OCPUSingleFlight flight = new OCPUSingleFlight();
+	private volatile FileChannel channel;
+	private volatile long end;
+
+	/**
+	 * Open the store in the directory, creating it if necessary.
+	 * @param directory the directory holding the store
+	 * @param maxBytes maximum size of the store on disk
+	 * @throws IOException if the store can not be opened
+	 */
+	public OCPUResultStore(Path directory, long maxBytes) throws IOException {
+		this(directory, maxBytes, 0L);
+	}
+
+	/**
+	 * Open the store in the directory, creating it if necessary.
+	 * @param directory the directory holding the store
+	 * @param maxBytes maximum size of the store on disk
+	 * @param maxAgeMillis maximum age (ms) of a stored result,
+	 * zero for results that do not expire
+	 * @throws IOException if the store can not be opened
+	 */
+	public OCPUResultStore(Path directory,
+						   long maxBytes,
+						   long maxAgeMillis) throws IOException {
+		if(maxBytes < 1)
+			throw new IllegalArgumentException("maxBytes < 1");
+		Files.createDirectories(directory);
+		this.log = directory.resolve(LOG);
+		this.tmp = directory.resolve(LOG + ".tmp");
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		/*
+		 * A compaction interrupted before its rename leaves the
+		 * old log intact, discard the partial copy.
+		 */
+		Files.deleteIfExists(tmp);
+		this.channel = open(log);
+		recover();
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the default endpoint,
+	 * returning the stored result of an identical task if present.
+	 * @param task the R task
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task) {
+		return execute(task, OCPU_DEFAULT_ENDPOINT);
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * returning the stored result of an identical task if present.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * returning the stored result of an identical task if present.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		if(!storable(task))
+			return task.execute(endpoint, transport);
+
+		String key = key(((BaseTask) task).signature(endpoint));
+		OCPUResult stored = read(key);
+		if(stored != null) {
+			hits.incrementAndGet();
+			return stored;
+		}
+
+		misses.incrementAndGet();
+		OCPUResult oResult = flight.execute(task, endpoint, transport);
+		if(oResult != null && oResult.success())
+			write(key, oResult);
+		return oResult;
+	}
+
+	/**
+	 * Returns the number of executions answered from the store.
+	 * @return number of stored results returned
+	 */
+	public long hits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of storable executions that made their
+	 * R call on the server.
+	 * @return number of executions not found in the store
+	 */
+	public long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of results held by the store.
+	 * @return number of stored results
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the size of the store on disk, including records
+	 * superseded or evicted since the last compaction.
+	 * @return size of the log in bytes
+	 */
+	public long bytes() {
+		return end;
+	}
+
+	/**
+	 * Close the store, later executions make their R call.
+	 */
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			channel.close();
+			index.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Results of tasks reading server state or writing local
+	 * files depend on more than the task signature.
+	 */
+	private static boolean storable(OCPUTask task) {
+		if(!(task instanceof BaseTask))
+			return false;
+		TaskOptions options = ((BaseTask) task).options();
+		return options.outputFile() == null &&
+				options.files().isEmpty() &&
+				options.datasets().isEmpty() &&
+				options.sessions().isEmpty();
+	}
+
+	private OCPUResult read(String key) {
+
+		byte[] record;
+		Entry entry;
+
+		lock.readLock().lock();
+		try {
+			if(!channel.isOpen())
+				return null;
+			entry = index.get(key);
+			if(entry == null)
+				return null;
+			if(expired(entry.created)) {
+				evict(key, entry);
+				return null;
+			}
+			record = new byte[entry.length];
+			read(channel, ByteBuffer.wrap(record), entry.offset);
+		} catch(IOException ioex) {
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		try {
+			byte[] payload = payload(record, key);
+			if(payload != null) {
+				ObjectInputStream in = new OCPUObjectInputStream(
+									new ByteArrayInputStream(payload));
+				OCPUResult oResult = (OCPUResult) in.readObject();
+				entry.used = clock.incrementAndGet();
+				return oResult;
+			}
+		} catch(Exception ex) {
+			// Unreadable result, evicted below.
+		}
+		evict(key, entry);
+		return null;
+	}
+
+	/*
+	 * Best effort, a result that can not be stored is
+	 * simply recomputed by the next identical task.
+	 */
+	private void write(String key, OCPUResult oResult) {
+
+		byte[] record;
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(payload);
+			out.writeObject(oResult);
+			out.close();
+			record = record(key, System.currentTimeMillis(),
+							payload.toByteArray());
+		} catch(IOException ioex) {
+			return;
+		}
+		if(record.length > maxBytes)
+			return;
+
+		boolean compact;
+		lock.readLock().lock();
+		try {
+			if(!channel.isOpen())
+				return;
+			append.lock();
+			try {
+				/*
+				 * Callers sharing a collapsed execution each
+				 * offer its result, the first one stores it.
+				 */
+				if(index.containsKey(key))
+					return;
+				long offset = end;
+				try {
+					write(channel, ByteBuffer.wrap(record), offset);
+					channel.force(false);
+				} catch(IOException ioex) {
+					try {
+						channel.truncate(offset);
+					} catch(IOException tex) {}
+					return;
+				}
+				end = offset + record.length;
+				index.put(key, new Entry(offset, record.length,
+						created(record), clock.incrementAndGet()));
+				compact = end > maxBytes;
+			} finally {
+				append.unlock();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if(compact)
+			compact();
+	}
+
+	/*
+	 * Copy the most recently used results, up to three quarters
+	 * of the size cap, to a new log replacing the current log.
+	 */
+	private void compact() {
+
+		lock.writeLock().lock();
+		try {
+			if(end <= maxBytes || !channel.isOpen())
+				return;
+
+			List<Map.Entry<String, Entry>> entries =
+				new ArrayList<Map.Entry<String, Entry>>(index.entrySet());
+			Collections.sort(entries,
+				new Comparator<Map.Entry<String, Entry>>() {
+					public int compare(Map.Entry<String, Entry> a,
+									   Map.Entry<String, Entry> b) {
+						return Long.compare(b.getValue().used,
+											a.getValue().used);
+					}
+				});
+
+			long budget = maxBytes - maxBytes / 4;
+			long total = 0L;
+			List<Map.Entry<String, Entry>> kept =
+							new ArrayList<Map.Entry<String, Entry>>();
+			for(Map.Entry<String, Entry> entry : entries) {
+				Entry e = entry.getValue();
+				if(expired(e.created) || total + e.length > budget)
+					continue;
+				total += e.length;
+				kept.add(entry);
+			}
+			/*
+			 * Least recently used first, so a scan of the new log
+			 * on open restores the recency order.
+			 */
+			Collections.reverse(kept);
+
+			Map<String, Entry> compacted = new HashMap<String, Entry>();
+			long offset = 0L;
+			FileChannel copy = FileChannel.open(tmp,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				for(Map.Entry<String, Entry> entry : kept) {
+					Entry e = entry.getValue();
+					byte[] record = new byte[e.length];
+					read(channel, ByteBuffer.wrap(record), e.offset);
+					if(payload(record, entry.getKey()) == null)
+						continue;
+					write(copy, ByteBuffer.wrap(record), offset);
+					compacted.put(entry.getKey(),
+						new Entry(offset, e.length, e.created, e.used));
+					offset += e.length;
+				}
+				copy.force(true);
+			} finally {
+				copy.close();
+			}
+
+			channel.close();
+			try {
+				try {
+					Files.move(tmp, log, StandardCopyOption.ATOMIC_MOVE,
+										 StandardCopyOption.REPLACE_EXISTING);
+				} catch(AtomicMoveNotSupportedException amex) {
+					Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch(IOException ioex) {
+				Files.deleteIfExists(tmp);
+				channel = open(log);
+				return;
+			}
+			channel = open(log);
+			end = offset;
+			index.clear();
+			index.putAll(compacted);
+
+		} catch(IOException ioex) {
+			// Compaction retried on the next append.
+			try {
+				Files.deleteIfExists(tmp);
+			} catch(IOException dex) {}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Rebuild the index from the log, truncating the log at the
+	 * first record that is incomplete or fails its checksum.
+	 */
+	private void recover() throws IOException {
+
+		long size = channel.size();
+		long offset = 0L;
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+		while(offset + HEADER + TRAILER <= size) {
+			header.clear();
+			read(channel, header, offset);
+			int magic = header.getInt(0);
+			int length = header.getInt(4);
+			if(magic != MAGIC || length < 0 ||
+				offset + HEADER + length + TRAILER > size)
+				break;
+			byte[] record = new byte[HEADER + length + TRAILER];
+			read(channel, ByteBuffer.wrap(record), offset);
+			String key = key(record);
+			if(key == null || payload(record, key) == null)
+				break;
+			long created = created(record);
+			if(!expired(created))
+				index.put(key, new Entry(offset, record.length,
+										 created, clock.incrementAndGet()));
+			else
+				index.remove(key);
+			offset += record.length;
+		}
+
+		if(offset < size) {
+			channel.truncate(offset);
+			channel.force(true);
+		}
+		end = offset;
+	}
+
+	private void evict(String key, Entry entry) {
+		index.remove(key, entry);
+	}
+
+	private boolean expired(long created) {
+		return maxAgeMillis > 0 &&
+			System.currentTimeMillis() - created > maxAgeMillis;
+	}
+
+	/*
+	 * Record layout: magic, body length, body, CRC32 of the body.
+	 * The body holds the key, creation time and serialized result.
+	 */
+	private static byte[] record(String key,
+								 long created,
+								 byte[] payload) throws IOException {
+		ByteArrayOutputStream bytes =
+			new ByteArrayOutputStream(HEADER + payload.length + 128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(0);
+		out.writeUTF(key);
+		out.writeLong(created);
+		out.write(payload);
+		out.writeInt(0);
+		out.close();
+		byte[] record = bytes.toByteArray();
+		int length = record.length - HEADER - TRAILER;
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.putInt(4, length);
+		buffer.putInt(HEADER + length, crc(record, length));
+		return record;
+	}
+
+	/*
+	 * Returns the serialized result of a record, or null if
+	 * the record is corrupt or holds another key.
+	 */
+	private static byte[] payload(byte[] record, String key) {
+		if(record.length < HEADER + TRAILER)
+			return null;
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		int length = buffer.getInt(4);
+		if(buffer.getInt(0) != MAGIC ||
+			length != record.length - HEADER - TRAILER ||
+			buffer.getInt(HEADER + length) != crc(record, length) ||
+			!key.equals(key(record)))
+			return null;
+		int start = HEADER + 2 + (buffer.getShort(HEADER) & 0xffff) + 8;
+		return Arrays.copyOfRange(record, start, HEADER + length);
+	}
+
+	private static String key(byte[] record) {
+		try {
+			DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(record, HEADER,
+										 record.length - HEADER));
+			return in.readUTF();
+		} catch(IOException ioex) {
+			return null;
+		}
+	}
+
+	private static long created(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		return buffer.getLong(HEADER + 2 + (buffer.getShort(HEADER) & 0xffff));
+	}
+
+	private static int crc(byte[] record, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(record, HEADER, length);
+		return (int) crc.getValue();
+	}
+
+	private static String key(String signature) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256")
+								.digest(signature.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for(byte b : hash)
+				sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+			return sb.toString();
+		} catch(Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static FileChannel open(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE,
+								StandardOpenOption.READ,
+								StandardOpenOption.WRITE);
+	}
+
+	private static void read(FileChannel channel,
+							 ByteBuffer buffer,
+							 long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if(n < 0)
+				throw new EOFException();
+		}
+	}
+
+	private static void write(FileChannel channel,
+							  ByteBuffer buffer,
+							  long position) throws IOException {
+		while(buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+
+	/*
+	 * Location of a stored result in the log.
+	 */
+	private static final class Entry {
+
+		private final long offset;
+		private final int length;
+		private final long created;
+		private volatile long used;
+
+		private Entry(long offset, int length, long created, long used) {
+			this.offset = offset;
+			this.length = length;
+			this.created = created;
+			this.used = used;
+		}
+	}
+
+	private static final String LOG = "ocpu-results.log";
+	private static final int MAGIC = 0x4f435055;
+	private static final int HEADER = 8;
+	private static final int TRAILER = 4;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+}
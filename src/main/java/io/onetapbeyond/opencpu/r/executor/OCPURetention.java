@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+/**
+ * Data retained by an {@link OCPUResult}, see
+ * {@link OCPU#retention(OCPURetention)}. Use lean modes when many
+ * results are held in memory, for example in batch jobs. All modes
+ * other than {@link #FULL} drop the echoed input data, so
+ * {@link OCPUResult#input()} returns null, and record failures
+ * compactly: the {@link OCPUResult#cause()} is an
+ * {@link OCPUException} holding the message and HTTP status of the
+ * original cause without its stack trace or cause chain.
+ */
+public enum OCPURetention {
+
+	/**
+	 * Retain input data, output JSON and the failure cause as is.
+	 */
+	FULL,
+
+	/**
+	 * Retain output JSON as text.
+	 */
+	OUTPUT,
+
+	/**
+	 * Retain output JSON as UTF-8 encoded bytes.
+	 */
+	BYTES,
+
+	/**
+	 * Retain numeric vector outputs decoded as double[], other
+	 * outputs as UTF-8 encoded bytes. R NA, null, NaN, Inf and
+	 * -Inf values decode as the corresponding double values.
+	 */
+	PRIMITIVE
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Package affinity routing of {@link OCPUTask} across many OpenCPU
+ * server endpoints. Each R package, identified by package name and
+ * by user for GitHub and Gist packages, is consistent-hashed onto the
+ * endpoints so that it stays loaded on a few servers rather than on
+ * every server:
+ * <pre>
+ * {@code
+ * OCPURouter router = new OCPURouter(endpoints, 1.25);
+ * OCPUResult oResult = router.execute(oTask);
+ * }
+ * </pre>
+ * <p>
+ * Routing uses bounded loads: no endpoint takes more than
+ * <i>loadFactor</i> times the mean number of tasks in flight. When the
+ * preferred endpoint of a package is full the task spills over to the
+ * next endpoint on the hash ring, which becomes the package's second
+ * home. Adding or removing an endpoint only moves the packages hashed
+ * next to it.
+ */
+public class OCPURouter {
+
+	private static final int VIRTUAL_NODES = 64;
+
+	private final double loadFactor;
+	private final ConcurrentMap<String, AtomicInteger> load =
+							new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicLong spilled = new AtomicLong();
+	private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private volatile int members;
+
+	/**
+	 * Create a router.
+	 * @param endpoints the OpenCPU server endpoints
+	 * @param loadFactor bound on the load of any endpoint relative to
+	 * the mean load, at least 1.0. Lower values balance load more
+	 * evenly, higher values keep packages on fewer endpoints.
+	 */
+	public OCPURouter(Collection<String> endpoints, double loadFactor) {
+		if(loadFactor < 1.0)
+			throw new IllegalArgumentException("loadFactor < 1.0");
+		this.loadFactor = loadFactor;
+		for(String endpoint : endpoints)
+			add(endpoint);
+	}
+
+	/**
+	 * Add an endpoint, for example when an OpenCPU server joins.
+	 * @param endpoint the OpenCPU server endpoint
+	 */
+	public synchronized void add(String endpoint) {
+		if(ring.containsValue(endpoint))
+			return;
+		TreeMap<Long, String> updated = new TreeMap<Long, String>(ring);
+		for(int i = 0; i < VIRTUAL_NODES; i++)
+			updated.put(hash(endpoint + "#" + i), endpoint);
+		load.putIfAbsent(endpoint, new AtomicInteger());
+		members++;
+		ring = updated;
+	}
+
+	/**
+	 * Remove an endpoint, for example when an OpenCPU server leaves.
+	 * Tasks in flight on the endpoint are unaffected.
+	 * @param endpoint the OpenCPU server endpoint
+	 */
+	public synchronized void remove(String endpoint) {
+		TreeMap<Long, String> updated = new TreeMap<Long, String>(ring);
+		if(updated.values().removeAll(Collections.singleton(endpoint)))
+			members--;
+		ring = updated;
+	}
+
+	/**
+	 * Returns the endpoints tasks are routed to.
+	 * @return the endpoints
+	 */
+	public Set<String> endpoints() {
+		return new TreeSet<String>(ring.values());
+	}
+
+	/**
+	 * Returns the endpoint the R task would be routed to now.
+	 * @param task the R task
+	 * @return the OpenCPU server endpoint
+	 */
+	public String route(OCPUTask task) {
+		String endpoint = acquire(task);
+		release(endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Execute the R task on the endpoint chosen for its R package.
+	 * @param task the R task
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task) {
+		return execute(task, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the endpoint chosen for its R package.
+	 * @param task the R task
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, OCPUTransport transport) {
+		String endpoint = acquire(task);
+		try {
+			return task.execute(endpoint, transport);
+		} finally {
+			release(endpoint);
+		}
+	}
+
+	/**
+	 * Returns the number of tasks in flight on the endpoint.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return number of tasks in flight
+	 */
+	public int load(String endpoint) {
+		AtomicInteger count = load.get(endpoint);
+		return (count != null) ? count.get() : 0;
+	}
+
+	/**
+	 * Returns the number of tasks routed away from the preferred
+	 * endpoint of their R package as it was full.
+	 * @return number of spilled tasks
+	 */
+	public long spilled() {
+		return spilled.get();
+	}
+
+	/*
+	 * Reserve a slot on the first endpoint on the ring, starting at
+	 * the package hash, whose load is within the bound. Tasks without
+	 * a package go to the least loaded endpoint.
+	 */
+	private String acquire(OCPUTask task) {
+
+		TreeMap<Long, String> nodes = ring;
+		if(nodes.isEmpty())
+			throw new IllegalStateException("No OpenCPU endpoints.");
+
+		List<String> candidates = candidates(task, nodes);
+		int capacity = (int) Math.ceil(
+			loadFactor * (total.get() + 1) / candidates.size());
+
+		for(int i = 0; i < candidates.size(); i++) {
+			String endpoint = candidates.get(i);
+			AtomicInteger count = load.get(endpoint);
+			if(count.incrementAndGet() <= capacity) {
+				total.incrementAndGet();
+				if(i > 0)
+					spilled.incrementAndGet();
+				return endpoint;
+			}
+			count.decrementAndGet();
+		}
+
+		/*
+		 * Concurrent callers filled every endpoint since the
+		 * capacity was computed, exceed the bound on the first.
+		 */
+		String endpoint = candidates.get(0);
+		load.get(endpoint).incrementAndGet();
+		total.incrementAndGet();
+		return endpoint;
+	}
+
+	private void release(String endpoint) {
+		load.get(endpoint).decrementAndGet();
+		total.decrementAndGet();
+	}
+
+	/*
+	 * Distinct endpoints in ring order from the package hash,
+	 * or by ascending load for tasks without a package.
+	 */
+	private List<String> candidates(OCPUTask task, TreeMap<Long, String> nodes) {
+
+		Set<String> ordered = new LinkedHashSet<String>();
+
+		if(task instanceof BaseTask) {
+			long h = hash(((BaseTask) task).library());
+			int n = members;
+			for(String endpoint : nodes.tailMap(h, true).values()) {
+				if(ordered.add(endpoint) && ordered.size() == n)
+					return new ArrayList<String>(ordered);
+			}
+			for(String endpoint : nodes.headMap(h, false).values()) {
+				if(ordered.add(endpoint) && ordered.size() == n)
+					break;
+			}
+			return new ArrayList<String>(ordered);
+		}
+
+		ordered.addAll(nodes.values());
+		List<String> byLoad = new ArrayList<String>(ordered);
+		Collections.sort(byLoad, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Integer.compare(load(a), load(b));
+			}
+		});
+		return byLoad;
+	}
+
+	/*
+	 * 64-bit FNV-1a with a final avalanche mix, so that similar
+	 * package names land far apart on the ring.
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= (h >>> 33);
+		h *= 0xff51afd7ed558ccdL;
+		h ^= (h >>> 33);
+		return h;
+	}
+
+}
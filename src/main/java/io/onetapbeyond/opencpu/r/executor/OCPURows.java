@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Row stream of a data frame returned by an {@link OCPUTask}.
+ * Rows are requested from the OpenCPU server as ndjson, one JSON
+ * row per line, and decoded one at a time as the iterator advances,
+ * so memory use is constant regardless of the number of rows:
+ * <pre>
+ * {@code
+ * try (OCPURows<Person> rows = oTask.rows(endpoint, Person.class)) {
+ *     while(rows.hasNext()) {
+ *         Person person = rows.next();
+ *     }
+ * }
+ * }
+ * </pre>
+ * <p>
+ * The stream holds the HTTP connection to the OpenCPU server until
+ * the last row is read or the stream is closed. Always close the
+ * stream when rows are not read to the end. A failure while reading
+ * closes the stream and surfaces as an {@link IllegalStateException}
+ * with the cause attached.
+ *
+ * @param <T> the row type.
+ */
+public interface OCPURows<T> extends Iterator<T>, Closeable {
+
+	/**
+	 * Returns the number of rows read so far.
+	 * @return number of rows read
+	 */
+	public long count();
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Priority and deadline aware scheduler for {@link OCPUTask}
+ * sharing a bounded OpenCPU server capacity:
+ * <pre>
+ * {@code
+ * OCPUScheduler scheduler = new OCPUScheduler(executor, 16);
+ * scheduler.weight("reports", 4);
+ * Future<OCPUResult> fResult = scheduler.submit(oTask, endpoint,
+ *     OCPUScheduler.Priority.INTERACTIVE, "reports", 2, TimeUnit.SECONDS);
+ * }
+ * </pre>
+ * <p>
+ * At most <i>maxConcurrency</i> tasks execute at once. When capacity
+ * frees up the next task is chosen from the highest non-empty
+ * {@link Priority} class. Within a class, tenants share capacity in
+ * proportion to their weight and each tenant's tasks run earliest
+ * deadline first, tasks without a deadline last in submission order.
+ * Tasks whose deadline passed while queued are never sent, their
+ * {@link OCPUResult} fails with an {@link OCPUException}.
+ */
+public class OCPUScheduler {
+
+	/**
+	 * Priority classes, served strictly in declaration order.
+	 */
+	public enum Priority { INTERACTIVE, NORMAL, BULK }
+
+	/**
+	 * Tenant of tasks submitted without a tenant.
+	 */
+	public static final String DEFAULT_TENANT = "default";
+
+	private final Executor executor;
+	private final int maxConcurrency;
+	private final OCPUTransport transport;
+	private final Map<String, Integer> weights = new HashMap<String, Integer>();
+	private final List<Map<String, Tenant>> classes =
+							new ArrayList<Map<String, Tenant>>();
+	private final double[] clocks = new double[Priority.values().length];
+	private final AtomicLong expired = new AtomicLong();
+	private long sequence;
+	private int queued;
+	private int running;
+
+	/**
+	 * Create a scheduler executing tasks with the default transport.
+	 * @param executor executor running each task execution
+	 * @param maxConcurrency maximum number of tasks executing at once
+	 */
+	public OCPUScheduler(Executor executor, int maxConcurrency) {
+		this(executor, maxConcurrency, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Create a scheduler.
+	 * @param executor executor running each task execution
+	 * @param maxConcurrency maximum number of tasks executing at once
+	 * @param transport the transport making HTTP requests
+	 */
+	public OCPUScheduler(Executor executor,
+						 int maxConcurrency,
+						 OCPUTransport transport) {
+		if(maxConcurrency < 1)
+			throw new IllegalArgumentException("maxConcurrency < 1");
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+		this.transport = transport;
+		for(int i = 0; i < clocks.length; i++)
+			classes.add(new LinkedHashMap<String, Tenant>());
+	}
+
+	/**
+	 * Set the fair share weight of a tenant, the default weight is 1.
+	 * @param tenant the tenant
+	 * @param weight the weight, a tenant of weight 2 receives twice the
+	 * capacity of a tenant of weight 1 within a priority class.
+	 * @return this {@link OCPUScheduler}
+	 */
+	public synchronized OCPUScheduler weight(String tenant, int weight) {
+		if(weight < 1)
+			throw new IllegalArgumentException("weight < 1");
+		weights.put(tenant, weight);
+		for(Map<String, Tenant> tenants : classes) {
+			Tenant t = tenants.get(tenant);
+			if(t != null)
+				t.weight = weight;
+		}
+		return this;
+	}
+
+	/**
+	 * Submit the R task at {@link Priority#NORMAL} priority
+	 * for the default tenant, without deadline.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return future result of the R task
+	 */
+	public Future<OCPUResult> submit(OCPUTask task, String endpoint) {
+		return submit(task, endpoint, Priority.NORMAL, DEFAULT_TENANT);
+	}
+
+	/**
+	 * Submit the R task without deadline.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param priority the priority class
+	 * @param tenant the tenant submitting the task
+	 * @return future result of the R task
+	 */
+	public Future<OCPUResult> submit(OCPUTask task,
+									 String endpoint,
+									 Priority priority,
+									 String tenant) {
+		return enqueue(new Job(task, endpoint, priority, tenant, false, 0L));
+	}
+
+	/**
+	 * Submit the R task with a deadline. The task is not sent when
+	 * the deadline passes before it leaves the queue.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param priority the priority class
+	 * @param tenant the tenant submitting the task
+	 * @param timeout time from now to the deadline
+	 * @param unit unit of timeout
+	 * @return future result of the R task
+	 */
+	public Future<OCPUResult> submit(OCPUTask task,
+									 String endpoint,
+									 Priority priority,
+									 String tenant,
+									 long timeout,
+									 TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return enqueue(new Job(task, endpoint, priority, tenant, true, deadline));
+	}
+
+	/**
+	 * Returns the number of tasks waiting for capacity.
+	 * @return number of queued tasks
+	 */
+	public synchronized int queued() {
+		return queued;
+	}
+
+	/**
+	 * Returns the number of tasks executing.
+	 * @return number of executing tasks
+	 */
+	public synchronized int running() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of tenants with tasks waiting for capacity,
+	 * counted once per priority class.
+	 * @return number of backlogged tenants
+	 */
+	public synchronized int tenants() {
+		int backlogged = 0;
+		for(Map<String, Tenant> tenants : classes)
+			backlogged += tenants.size();
+		return backlogged;
+	}
+
+	/**
+	 * Returns the number of tasks dropped as their deadline passed.
+	 * @return number of expired tasks
+	 */
+	public long expired() {
+		return expired.get();
+	}
+
+	private Future<OCPUResult> enqueue(Job job) {
+
+		synchronized(this) {
+			job.seq = sequence++;
+			Map<String, Tenant> tenants = classes.get(job.priority.ordinal());
+			Tenant t = tenants.get(job.tenant);
+			if(t == null) {
+				Integer weight = weights.get(job.tenant);
+				t = new Tenant((weight != null) ? weight : 1);
+				tenants.put(job.tenant, t);
+			}
+			/*
+			 * A tenant becoming backlogged starts at the class clock,
+			 * idle time does not accrue credit over other tenants.
+			 */
+			if(t.jobs.isEmpty())
+				t.vtime = Math.max(t.vtime, clocks[job.priority.ordinal()]);
+			t.jobs.offer(job);
+			queued++;
+		}
+		dispatch();
+		return job;
+	}
+
+	/*
+	 * Start queued tasks while capacity is available.
+	 */
+	private void dispatch() {
+
+		for(;;) {
+
+			Job job;
+			boolean expire = false;
+
+			synchronized(this) {
+				if(running >= maxConcurrency)
+					return;
+				job = next();
+				if(job == null)
+					return;
+				if(job.isDone())
+					continue;
+				if(job.timed && job.deadline - System.nanoTime() <= 0)
+					expire = true;
+				else
+					running++;
+			}
+
+			if(expire) {
+				expired.incrementAndGet();
+				job.expire();
+				continue;
+			}
+
+			final Job started = job;
+
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							started.run();
+						} finally {
+							release();
+						}
+					}
+				});
+			} catch(RejectedExecutionException rex) {
+				synchronized(this) {
+					running--;
+				}
+				job.fail(rex);
+			}
+		}
+	}
+
+	private void release() {
+		synchronized(this) {
+			running--;
+		}
+		dispatch();
+	}
+
+	/*
+	 * Poll the next task: highest priority class, then the backlogged
+	 * tenant with the least weighted service, then earliest deadline.
+	 */
+	private Job next() {
+
+		for(int p = 0; p < clocks.length; p++) {
+
+			Map<String, Tenant> tenants = classes.get(p);
+			Map.Entry<String, Tenant> selected = null;
+			for(Map.Entry<String, Tenant> entry : tenants.entrySet()) {
+				Tenant t = entry.getValue();
+				if(!t.jobs.isEmpty() && (selected == null ||
+						t.vtime < selected.getValue().vtime))
+					selected = entry;
+			}
+
+			if(selected != null) {
+				Tenant t = selected.getValue();
+				clocks[p] = t.vtime;
+				t.vtime += 1.0 / t.weight;
+				queued--;
+				Job job = t.jobs.poll();
+				/*
+				 * Drop a drained tenant so per-request tenant ids
+				 * do not accumulate. On return it starts at the
+				 * class clock, forgoing at most one task of service.
+				 */
+				if(t.jobs.isEmpty())
+					tenants.remove(selected.getKey());
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private static final class Tenant {
+
+		private final PriorityQueue<Job> jobs =
+							new PriorityQueue<Job>(11, EDF);
+		private int weight;
+		private double vtime;
+
+		private Tenant(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	private final class Job extends FutureTask<OCPUResult> {
+
+		private final Priority priority;
+		private final String tenant;
+		private final boolean timed;
+		private final long deadline;
+		private long seq;
+
+		private Job(final OCPUTask task,
+					final String endpoint,
+					Priority priority,
+					String tenant,
+					boolean timed,
+					long deadline) {
+			super(new Callable<OCPUResult>() {
+				public OCPUResult call() {
+					return task.execute(endpoint, transport);
+				}
+			});
+			this.priority = (priority != null) ? priority : Priority.NORMAL;
+			this.tenant = (tenant != null) ? tenant : DEFAULT_TENANT;
+			this.timed = timed;
+			this.deadline = deadline;
+		}
+
+		private void expire() {
+			set(new OCPUResultImpl(false, null, null,
+				"Task deadline expired before execution.",
+				new OCPUException("Task deadline expired."), 0L));
+		}
+
+		private void fail(Exception ex) {
+			set(new OCPUResultImpl(false, null, null,
+				"Task execution failed.", ex, 0L));
+		}
+	}
+
+	private static final Comparator<Job> EDF = new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			if(a.timed && b.timed && a.deadline != b.deadline)
+				return (a.deadline - b.deadline < 0) ? -1 : 1;
+			if(a.timed != b.timed)
+				return a.timed ? -1 : 1;
+			return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+		}
+	};
+
+}
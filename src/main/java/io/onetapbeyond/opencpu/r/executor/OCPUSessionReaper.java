@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link OCPUTransport} deleting OpenCPU sessions created by R script
+ * tasks once their outputs have been fetched:
+ * <pre>
+ * {@code
+ * OCPUSessionReaper reaper =
+ *     new OCPUSessionReaper(OCPUTransports.getDefault(), 5000L);
+ * OCPUResult oResult = oScriptTask.execute(endpoint, reaper);
+ * ...
+ * reaper.close();
+ * }
+ * </pre>
+ * <p>
+ * Requests pass through to the underlying transport. When an R object
+ * is fetched successfully from a session workspace, the session is
+ * queued and deleted by a background daemon thread on its next sweep.
+ * Sessions that are never fetched from, such as pinned datasets of
+ * {@link OCPUDatasets}, are left untouched. Closing the reaper deletes
+ * queued sessions and stops the background thread.
+ */
+public class OCPUSessionReaper implements OCPUTransport, Closeable {
+
+	private final OCPUTransport transport;
+	private final ScheduledExecutorService sweeper;
+	private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+	private final AtomicLong reaped = new AtomicLong();
+
+	/**
+	 * Create a session reaper.
+	 * @param transport the transport making HTTP requests
+	 * @param sweepMillis delay (ms) between background sweeps
+	 */
+	public OCPUSessionReaper(OCPUTransport transport, long sweepMillis) {
+		this.transport = transport;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ocpu-session-reaper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		this.sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				reap();
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public OCPUResponse send(OCPURequest request) throws IOException {
+
+		final OCPUResponse resp = transport.send(request);
+		final String session = session(request);
+
+		if(session == null)
+			return resp;
+
+		return new OCPUResponse() {
+			public int status() {
+				return resp.status();
+			}
+			public String message() {
+				return resp.message();
+			}
+			public String header(String name) {
+				return resp.header(name);
+			}
+			public InputStream body() throws IOException {
+				return resp.body();
+			}
+			public void close() throws IOException {
+				try {
+					resp.close();
+				} finally {
+					if(resp.status() == 200)
+						pending.offer(session);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Delete queued sessions now.
+	 */
+	public void reap() {
+
+		String session;
+
+		while((session = pending.poll()) != null) {
+			OCPUResponse resp = null;
+			try {
+				resp = transport.send(new OCPURequest("DELETE",
+					new URL(session), JSON_TYPE, JSON_TYPE, (byte[]) null));
+				if(resp.status() / 100 == 2)
+					reaped.incrementAndGet();
+			} catch(Exception ex) {
+				// Best effort, sessions expire on the server.
+			} finally {
+				if(resp != null) {
+					try {
+						resp.close();
+					} catch(Exception cex) {}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of sessions queued for deletion.
+	 * @return number of queued sessions
+	 */
+	public int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * Returns the number of sessions deleted.
+	 * @return number of deleted sessions
+	 */
+	public long reaped() {
+		return reaped.get();
+	}
+
+	/**
+	 * Delete queued sessions and stop the background sweeps.
+	 */
+	public void close() {
+		sweeper.shutdown();
+		try {
+			sweeper.awaitTermination(30, TimeUnit.SECONDS);
+		} catch(InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		reap();
+	}
+
+	/*
+	 * Session URL of a fetch of an R object from a session
+	 * workspace, otherwise null.
+	 */
+	private static String session(OCPURequest request) {
+
+		if(!"GET".equals(request.method()))
+			return null;
+
+		String url = request.url().toString();
+		int base = url.indexOf(BaseTask.OCPU_SESSION_BASE);
+		if(base < 0)
+			return null;
+		int workspace = url.indexOf(BaseTask.OCPU_WORKSPACE,
+						base + BaseTask.OCPU_SESSION_BASE.length());
+		return (workspace < 0) ? null : url.substring(0, workspace + 1);
+	}
+
+	private static final String JSON_TYPE = "application/json";
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import static io.onetapbeyond.opencpu.r.executor.util.OCPUConstants.*;
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight execution of {@link OCPUTask}. While a task is in
+ * flight on an OpenCPU server endpoint, identical tasks (same R call,
+ * same endpoint, same input data and same output file, response size
+ * limit and retention) submitted concurrently attach to
+ * the pending execution and share its {@link OCPUResult} rather than
+ * making a duplicate call on the server:
+ * <pre>
+ * {@code
+ * OCPUSingleFlight flight = new OCPUSingleFlight();
+ * OCPUResult oResult = flight.execute(oTask, endpoint);
+ * }
+ * </pre>
+ * <p>
+ * Only concurrent calls are collapsed, results are not cached
+ * once the execution in flight completes.
+ */
+public class OCPUSingleFlight {
+
+	private final ConcurrentMap<String, Flight> inFlight =
+								new ConcurrentHashMap<String, Flight>();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong collapsed = new AtomicLong();
+
+	/**
+	 * Execute the R task on the OpenCPU server at the default endpoint,
+	 * sharing the result of an identical task already in flight.
+	 * @param task the R task
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task) {
+		return execute(task, OCPU_DEFAULT_ENDPOINT);
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * sharing the result of an identical task already in flight.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * sharing the result of an identical task already in flight.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		if(!(task instanceof BaseTask)) {
+			executed.incrementAndGet();
+			return task.execute(endpoint, transport);
+		}
+
+		String signature = ((BaseTask) task).signature(endpoint);
+		Flight flight = new Flight();
+		Flight pending = inFlight.putIfAbsent(signature, flight);
+
+		if(pending != null) {
+			collapsed.incrementAndGet();
+			return pending.await();
+		}
+
+		executed.incrementAndGet();
+
+		try {
+			flight.result = task.execute(endpoint, transport);
+			flight.completed = true;
+		} catch(RuntimeException rex) {
+			flight.failure = rex;
+			throw rex;
+		} finally {
+			inFlight.remove(signature, flight);
+			flight.done.countDown();
+		}
+
+		return flight.result;
+	}
+
+	/**
+	 * Returns the number of executions made on the server.
+	 * @return number of task executions made on the server
+	 */
+	public long executed() {
+		return executed.get();
+	}
+
+	/**
+	 * Returns the number of calls collapsed onto an execution
+	 * already in flight.
+	 * @return number of calls that shared an in flight result
+	 */
+	public long collapsed() {
+		return collapsed.get();
+	}
+
+	/**
+	 * Returns the number of distinct executions currently in flight.
+	 * @return number of executions in flight
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	/*
+	 * Pending execution shared by identical tasks.
+	 */
+	private static class Flight {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile OCPUResult result;
+		private volatile boolean completed;
+		private volatile Exception failure;
+
+		private OCPUResult await() {
+
+			try {
+				done.await();
+			} catch(InterruptedException iex) {
+				Thread.currentThread().interrupt();
+				return new OCPUResultImpl(false, null, null,
+					"Task execution interrupted.", iex, 0L);
+			}
+
+			/*
+			 * A script call without output completes with no
+			 * result, shared as is. Waiters on an execution that
+			 * threw receive a failed result holding its cause.
+			 */
+			if(!completed) {
+				String msg = "Task execution failed.";
+				return new OCPUResultImpl(false, null, null, msg,
+					(failure != null) ? failure : new OCPUException(msg), 0L);
+			}
+			return result;
+		}
+	}
+
+}
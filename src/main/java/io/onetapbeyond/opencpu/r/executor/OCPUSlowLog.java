@@ -0,0 +1,634 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.management.*;
+
+/**
+ * Opt-in log capturing the slowest and the failed {@link OCPUTask}
+ * executions, for diagnosing latency spikes after the fact:
+ * <pre>
+ * {@code
+ * OCPUSlowLog slowLog = new OCPUSlowLog(20, 100, 60000L, 256);
+ * slowLog.register("reports");
+ * OCPUResult oResult = slowLog.execute(oTask, endpoint);
+ * ...
+ * System.out.println(slowLog.dump());
+ * }
+ * </pre>
+ * <p>
+ * Within each window of <i>windowMillis</i> the log keeps the
+ * <i>slowest</i> slowest successful executions, and up to
+ * <i>failures</i> failed executions, overwriting the oldest. A
+ * {@link Capture} records the R call, endpoint host, input and output
+ * sizes and the samples of input and output data truncated to
+ * <i>sampleBytes</i>. It also records each HTTP exchange made by the
+ * execution, with its status, wait until response headers and time
+ * reading the response body. Captures of the current and the previous
+ * window are returned by {@link #captures()}, or as text by
+ * {@link #dump()}, also available through JMX once registered,
+ * see {@link OCPUSlowLogMBean}.
+ * <p>
+ * A successful execution faster than the slowest already kept in a
+ * full window is discarded without taking a lock, so executions on
+ * the fast path only pay for counting response bytes.
+ */
+public class OCPUSlowLog implements OCPUSlowLogMBean {
+
+	/**
+	 * Execution captured by an {@link OCPUSlowLog}.
+	 */
+	public static final class Capture {
+
+		private final long started;
+		private final String endpoint;
+		private final String call;
+		private final boolean success;
+		private final String error;
+		private final long millis;
+		private final long inputBytes;
+		private final long outputBytes;
+		private final String inputSample;
+		private final String outputSample;
+		private final List<Exchange> exchanges;
+		private final long nanos;
+
+		private Capture(long started, String endpoint, String call,
+						OCPUResult oResult, boolean failed, long nanos,
+						long inputBytes, String inputSample,
+						List<Exchange> exchanges) {
+			this.started = started;
+			this.endpoint = endpoint;
+			this.call = call;
+			this.success = !failed;
+			this.error = (oResult != null && oResult.cause() != null) ?
+				oResult.cause().toString() : (failed ? "No result." : null);
+			this.nanos = nanos;
+			this.millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			this.inputBytes = inputBytes;
+			this.inputSample = inputSample;
+			this.exchanges = Collections.unmodifiableList(exchanges);
+			long output = 0L;
+			String sample = null;
+			for(Exchange exchange : exchanges) {
+				output += exchange.responseBytes;
+				if(exchange.sample != null)
+					sample = exchange.sample;
+			}
+			this.outputBytes = output;
+			this.outputSample = sample;
+		}
+
+		/**
+		 * Returns the time the execution started.
+		 * @return epoch time (ms)
+		 */
+		public long started() {
+			return started;
+		}
+
+		/**
+		 * Returns the OpenCPU server endpoint.
+		 * @return the endpoint
+		 */
+		public String endpoint() {
+			return endpoint;
+		}
+
+		/**
+		 * Returns the host of the OpenCPU server endpoint.
+		 * @return the endpoint host
+		 */
+		public String host() {
+			try {
+				return new URL(endpoint).getHost();
+			} catch(MalformedURLException mex) {
+				return endpoint;
+			}
+		}
+
+		/**
+		 * Returns the R call path of the task, for example
+		 * /library/stats/R/rnorm/json.
+		 * @return the R call path
+		 */
+		public String call() {
+			return call;
+		}
+
+		/**
+		 * Returns true if the execution succeeded.
+		 * @return true if successful
+		 */
+		public boolean success() {
+			return success;
+		}
+
+		/**
+		 * Returns the cause of a failed execution.
+		 * @return the failure cause, null if successful
+		 */
+		public String error() {
+			return error;
+		}
+
+		/**
+		 * Returns the HTTP status of the last exchange.
+		 * @return the HTTP status, zero when no response was received
+		 */
+		public int status() {
+			return exchanges.isEmpty() ? 0 :
+				exchanges.get(exchanges.size() - 1).status;
+		}
+
+		/**
+		 * Returns the duration of the execution.
+		 * @return duration (ms)
+		 */
+		public long millis() {
+			return millis;
+		}
+
+		/**
+		 * Returns the size of the encoded input data.
+		 * @return input size in bytes
+		 */
+		public long inputBytes() {
+			return inputBytes;
+		}
+
+		/**
+		 * Returns the size of all response bodies read.
+		 * @return output size in bytes
+		 */
+		public long outputBytes() {
+			return outputBytes;
+		}
+
+		/**
+		 * Returns the start of the encoded input data.
+		 * @return the input sample, null if there was no input
+		 */
+		public String inputSample() {
+			return inputSample;
+		}
+
+		/**
+		 * Returns the start of the last response body read.
+		 * @return the output sample, null if no body was read
+		 */
+		public String outputSample() {
+			return outputSample;
+		}
+
+		/**
+		 * Returns the HTTP exchanges made by the execution.
+		 * @return the HTTP exchanges, in order
+		 */
+		public List<Exchange> exchanges() {
+			return exchanges;
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(new Date(started)).append(' ')
+			  .append(success ? "SLOW " : "FAILED ")
+			  .append(millis).append("ms ")
+			  .append(host()).append(' ').append(call)
+			  .append(" status=").append(status())
+			  .append(" in=").append(inputBytes)
+			  .append(" out=").append(outputBytes);
+			if(error != null)
+				sb.append(" error=").append(error);
+			if(inputSample != null)
+				sb.append(" input=").append(inputSample);
+			if(outputSample != null)
+				sb.append(" output=").append(outputSample);
+			for(Exchange exchange : exchanges)
+				sb.append("\n  ").append(exchange);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * HTTP exchange made by a captured execution.
+	 */
+	public static final class Exchange {
+
+		private final String method;
+		private final String path;
+		private final long offsetMillis;
+		private int status;
+		private long waitMillis;
+		private long readMillis;
+		private long requestBytes;
+		private long responseBytes;
+		private String sample;
+
+		private Exchange(OCPURequest request, long offsetMillis) {
+			this.method = request.method();
+			this.path = request.url().getPath();
+			this.offsetMillis = offsetMillis;
+		}
+
+		/**
+		 * Returns the HTTP method.
+		 * @return the HTTP method
+		 */
+		public String method() {
+			return method;
+		}
+
+		/**
+		 * Returns the URL path of the request.
+		 * @return the URL path
+		 */
+		public String path() {
+			return path;
+		}
+
+		/**
+		 * Returns the HTTP status of the response.
+		 * @return the HTTP status, zero when no response was received
+		 */
+		public int status() {
+			return status;
+		}
+
+		/**
+		 * Returns the time from the start of the execution
+		 * to the start of the exchange.
+		 * @return offset (ms)
+		 */
+		public long offsetMillis() {
+			return offsetMillis;
+		}
+
+		/**
+		 * Returns the time connecting, sending the request and
+		 * waiting for the response headers, including the time
+		 * the R call took on the OpenCPU server.
+		 * @return wait (ms)
+		 */
+		public long waitMillis() {
+			return waitMillis;
+		}
+
+		/**
+		 * Returns the time reading the response body.
+		 * @return read (ms)
+		 */
+		public long readMillis() {
+			return readMillis;
+		}
+
+		/**
+		 * Returns the size of the request body.
+		 * @return request size in bytes
+		 */
+		public long requestBytes() {
+			return requestBytes;
+		}
+
+		/**
+		 * Returns the size of the response body read.
+		 * @return response size in bytes
+		 */
+		public long responseBytes() {
+			return responseBytes;
+		}
+
+		public String toString() {
+			return method + " " + path + " status=" + status +
+				" at=" + offsetMillis + "ms wait=" + waitMillis +
+				"ms read=" + readMillis + "ms sent=" + requestBytes +
+				" received=" + responseBytes;
+		}
+	}
+
+	private final int slowest;
+	private final int failures;
+	private final long windowNanos;
+	private final int sampleBytes;
+	private PriorityQueue<Capture> slow;
+	private Capture[] failed;
+	private int failedNext;
+	private List<Capture> previous = Collections.emptyList();
+	private volatile long threshold;
+	private volatile long windowEnd;
+
+	/**
+	 * Create a slow log.
+	 * @param slowest number of slowest successful executions
+	 * kept per window
+	 * @param failures maximum number of failed executions
+	 * kept per window
+	 * @param windowMillis duration (ms) of a window
+	 * @param sampleBytes maximum size of input and output samples
+	 */
+	public OCPUSlowLog(int slowest,
+					   int failures,
+					   long windowMillis,
+					   int sampleBytes) {
+		if(slowest < 0 || failures < 0)
+			throw new IllegalArgumentException("capacity < 0");
+		this.slowest = slowest;
+		this.failures = failures;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.sampleBytes = sampleBytes;
+		reset(System.nanoTime());
+	}
+
+	/**
+	 * Execute the R task on the endpoint, capturing the execution
+	 * if it is slow or fails.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the endpoint, capturing the execution
+	 * if it is slow or fails.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		long started = System.currentTimeMillis();
+		long start = System.nanoTime();
+		Recorder recorder = new Recorder(transport, start);
+		OCPUResult oResult = null;
+		boolean failed = true;
+
+		try {
+			oResult = task.execute(endpoint, recorder);
+			/*
+			 * Script tasks without output have no result,
+			 * their call succeeded.
+			 */
+			failed = (oResult != null && !oResult.success());
+			return oResult;
+		} finally {
+			long end = System.nanoTime();
+			long nanos = end - start;
+			if(failed || nanos >= threshold || end - windowEnd >= 0)
+				record(failed, end, new Capture(started, endpoint,
+					task.toString(), oResult, failed, nanos, inputBytes(task),
+					inputSample(task), recorder.exchanges));
+		}
+	}
+
+	/**
+	 * Returns the captures of the current and the previous window,
+	 * in order of execution start.
+	 * @return the captures
+	 */
+	public synchronized List<Capture> captures() {
+
+		rotate(System.nanoTime());
+
+		List<Capture> captures = new ArrayList<Capture>(previous);
+		captures.addAll(current());
+		Collections.sort(captures, new Comparator<Capture>() {
+			public int compare(Capture a, Capture b) {
+				return (a.started < b.started) ? -1 :
+					((a.started == b.started) ? 0 : 1);
+			}
+		});
+		return captures;
+	}
+
+	public String dump() {
+		StringBuilder sb = new StringBuilder();
+		for(Capture capture : captures())
+			sb.append(capture).append('\n');
+		return sb.toString();
+	}
+
+	public int getCaptured() {
+		return captures().size();
+	}
+
+	public long getThresholdMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(threshold);
+	}
+
+	public synchronized void clear() {
+		previous = Collections.emptyList();
+		reset(System.nanoTime());
+	}
+
+	/**
+	 * Register the slow log with the platform MBean server.
+	 * @param name the name distinguishing the slow log
+	 * @return the JMX object name
+	 * @throws OCPUException if the slow log can not be registered
+	 */
+	public ObjectName register(String name) throws OCPUException {
+		try {
+			ObjectName objectName = new ObjectName(
+				"io.onetapbeyond.opencpu:type=OCPUSlowLog,name=" +
+				ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+				this, objectName);
+			return objectName;
+		} catch(Exception ex) {
+			throw new OCPUException("Slow log " + name +
+									" can not be registered.", ex);
+		}
+	}
+
+	private synchronized void record(boolean isFailed, long now, Capture capture) {
+
+		rotate(now);
+
+		if(isFailed) {
+			if(failures > 0) {
+				failed[failedNext] = capture;
+				failedNext = (failedNext + 1) % failures;
+			}
+			return;
+		}
+
+		if(slowest == 0 || capture.nanos < threshold)
+			return;
+		slow.offer(capture);
+		if(slow.size() > slowest)
+			slow.poll();
+		if(slow.size() == slowest)
+			threshold = slow.peek().nanos;
+	}
+
+	/*
+	 * Start a new window once the current window has ended.
+	 */
+	private void rotate(long now) {
+		if(now - windowEnd >= 0) {
+			/*
+			 * After an idle window the previous window is empty.
+			 */
+			previous = (now - windowEnd < windowNanos) ?
+				current() : Collections.<Capture>emptyList();
+			reset(now);
+		}
+	}
+
+	private void reset(long now) {
+		slow = new PriorityQueue<Capture>(Math.max(1, slowest),
+			new Comparator<Capture>() {
+				public int compare(Capture a, Capture b) {
+					return (a.nanos < b.nanos) ? -1 :
+						((a.nanos == b.nanos) ? 0 : 1);
+				}
+			});
+		failed = new Capture[failures];
+		failedNext = 0;
+		threshold = (slowest == 0) ? Long.MAX_VALUE : 0L;
+		windowEnd = now + windowNanos;
+	}
+
+	private List<Capture> current() {
+		List<Capture> captures = new ArrayList<Capture>(slow);
+		for(Capture capture : failed) {
+			if(capture != null)
+				captures.add(capture);
+		}
+		return captures;
+	}
+
+	private static long inputBytes(OCPUTask task) {
+		return (task instanceof BaseTask) ? ((BaseTask) task).inputBytes() : 0L;
+	}
+
+	private String inputSample(OCPUTask task) {
+		String input = (task instanceof BaseTask) ?
+							((BaseTask) task).input() : null;
+		if(input == null || input.length() <= sampleBytes)
+			return input;
+		return input.substring(0, sampleBytes) + "...";
+	}
+
+	/*
+	 * Transport recording the HTTP exchanges of an execution,
+	 * counting response bytes and keeping the start of each
+	 * response body.
+	 */
+	private final class Recorder implements OCPUTransport {
+
+		private final OCPUTransport transport;
+		private final long start;
+		private final List<Exchange> exchanges = new ArrayList<Exchange>(2);
+
+		private Recorder(OCPUTransport transport, long start) {
+			this.transport = transport;
+			this.start = start;
+		}
+
+		public OCPUResponse send(OCPURequest request) throws IOException {
+
+			long sent = System.nanoTime();
+			final Exchange exchange = new Exchange(request,
+				TimeUnit.NANOSECONDS.toMillis(sent - start));
+			exchange.requestBytes = requestBytes(request);
+			exchanges.add(exchange);
+
+			final OCPUResponse resp = transport.send(request);
+			final long received = System.nanoTime();
+			exchange.status = resp.status();
+			exchange.waitMillis = TimeUnit.NANOSECONDS.toMillis(received - sent);
+
+			return new OCPUResponse() {
+				private ByteArrayOutputStream sample;
+				public int status() {
+					return resp.status();
+				}
+				public String message() {
+					return resp.message();
+				}
+				public String header(String name) {
+					return resp.header(name);
+				}
+				public InputStream body() throws IOException {
+					sample = new ByteArrayOutputStream();
+					return new FilterInputStream(resp.body()) {
+						public int read() throws IOException {
+							int b = super.read();
+							if(b >= 0) {
+								exchange.responseBytes++;
+								if(sample.size() < sampleBytes)
+									sample.write(b);
+							}
+							return b;
+						}
+						public int read(byte[] b, int off, int len)
+												throws IOException {
+							int n = super.read(b, off, len);
+							if(n > 0)
+								count(b, off, n);
+							return n;
+						}
+					};
+				}
+				private void count(byte[] b, int off, int n) {
+					exchange.responseBytes += n;
+					int keep = Math.min(n, sampleBytes - sample.size());
+					if(keep > 0)
+						sample.write(b, off, keep);
+				}
+				public void close() throws IOException {
+					try {
+						resp.close();
+					} finally {
+						exchange.readMillis = TimeUnit.NANOSECONDS.toMillis(
+							System.nanoTime() - received);
+						if(sample != null && sample.size() > 0) {
+							exchange.sample = new String(sample.toByteArray(),
+								StandardCharsets.UTF_8) +
+								(exchange.responseBytes > sample.size() ? "..." : "");
+						}
+					}
+				}
+			};
+		}
+
+		private long requestBytes(OCPURequest request) {
+			if(request.body() != null)
+				return request.body().length;
+			try {
+				return (request.content() != null) ?
+					request.content().length() : 0L;
+			} catch(IOException ioex) {
+				return -1L;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+/**
+ * JMX management interface of an {@link OCPUSlowLog} registered
+ * using {@link OCPUSlowLog#register(String)}.
+ */
+public interface OCPUSlowLogMBean {
+
+	/**
+	 * Returns the captures as text, one line per capture
+	 * followed by one line per HTTP exchange.
+	 * @return the captures
+	 */
+	public String dump();
+
+	/**
+	 * Returns the number of captures held.
+	 * @return number of captures
+	 */
+	public int getCaptured();
+
+	/**
+	 * Returns the duration (ms) a successful execution must
+	 * exceed to be captured in the current window.
+	 * @return the capture threshold
+	 */
+	public long getThresholdMillis();
+
+	/**
+	 * Discard all captures.
+	 */
+	public void clear();
+
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.tasks.*;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUAdapters;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.gson.*;
+
+/**
+ * Parameter sweep executing an R task over a grid of input values,
+ * for example for a sensitivity analysis:
+ * <pre>
+ * {@code
+ * OCPUSweep.Results results =
+ *     OCPUSweep.of(OCPU.R().pkg("stats").function("qnorm")
+ *                      .input(fInput).library())
+ *              .axis("mean", 0, 1, 2)
+ *              .range("sd", 0.5, 2.0, 4)
+ *              .run(endpoints, 4, executor);
+ * results.await();
+ * List<Object> sd = results.column("sd");
+ * List<double[]> values = results.outputs("qnorm", double[].class);
+ * }
+ * </pre>
+ * <p>
+ * Each point of the grid binds one value of every axis as the named
+ * R function argument, alongside the input data of the base task.
+ * Grid points are generated lazily, either the full Cartesian product
+ * of the axes or a random sample of it, so a sweep over a large grid
+ * never holds the grid in memory. The R call is resolved once on each
+ * endpoint, then points are executed in parallel with the given
+ * concurrency on every endpoint, each slot taking the next point as it
+ * completes so that faster endpoints take more of the grid.
+ * <p>
+ * Outputs are collected into {@link Results}, one row per completed
+ * point holding the axis values and the {@link OCPUResult}, readable
+ * while the sweep runs. Use a lean {@link OCPURetention} mode on the
+ * base task when sweeping many points.
+ */
+public class OCPUSweep {
+
+	private static Gson gson = new Gson();
+
+	private final BaseTask base;
+	private final List<String> names = new ArrayList<String>();
+	private final List<List<Object>> values = new ArrayList<List<Object>>();
+	private final List<String[]> encoded = new ArrayList<String[]>();
+	private long sample = -1L;
+	private long seed;
+
+	private OCPUSweep(BaseTask base) {
+		this.base = base;
+	}
+
+	/**
+	 * Create a sweep over the R task built by {@link OCPU}.
+	 * @param task the base R task, its input data is sent on
+	 * every point of the grid
+	 * @return the {@link OCPUSweep} builder
+	 * @throws OCPUException if the task was not built by {@link OCPU}
+	 */
+	public static OCPUSweep of(OCPUTask task) throws OCPUException {
+		if(!(task instanceof BaseTask))
+			throw new OCPUException("Task not built by OCPU.");
+		return new OCPUSweep((BaseTask) task);
+	}
+
+	/**
+	 * Add an axis to the grid. Values replace any input data of the
+	 * same name on the base task.
+	 * @param name the R function argument name
+	 * @param values the argument values
+	 * @return the {@link OCPUSweep} builder
+	 * @throws OCPUException if a value can not be converted to valid JSON
+	 */
+	public OCPUSweep axis(String name, Object... values) throws OCPUException {
+		return axis(name, Arrays.asList(values));
+	}
+
+	/**
+	 * Add an axis to the grid. Values replace any input data of the
+	 * same name on the base task.
+	 * @param name the R function argument name
+	 * @param values the argument values
+	 * @return the {@link OCPUSweep} builder
+	 * @throws OCPUException if a value can not be converted to valid JSON
+	 */
+	public OCPUSweep axis(String name,
+						  Collection<?> values) throws OCPUException {
+
+		if(names.contains(name))
+			throw new OCPUException("Sweep axis " + name + " already defined.");
+
+		List<Object> axis = new ArrayList<Object>(values);
+		String[] json = new String[axis.size()];
+
+		for(int v = 0; v < json.length; v++) {
+			try {
+				json[v] = OCPUAdapters.toJson(axis.get(v));
+			} catch(Exception gex) {
+				throw new OCPUException("Sweep axis " + name +
+										" value invalid.", gex);
+			}
+		}
+
+		this.names.add(name);
+		this.values.add(Collections.unmodifiableList(axis));
+		this.encoded.add(json);
+		return this;
+	}
+
+	/**
+	 * Add an axis of evenly spaced numeric values to the grid.
+	 * @param name the R function argument name
+	 * @param from the first value
+	 * @param to the last value
+	 * @param steps the number of values, at least one
+	 * @return the {@link OCPUSweep} builder
+	 * @throws OCPUException if the axis is already defined
+	 */
+	public OCPUSweep range(String name,
+						   double from,
+						   double to,
+						   int steps) throws OCPUException {
+
+		if(steps < 1)
+			throw new IllegalArgumentException("steps < 1");
+
+		List<Object> axis = new ArrayList<Object>(steps);
+		for(int s = 0; s < steps; s++) {
+			axis.add((steps == 1) ?
+				from : from + (to - from) * s / (steps - 1));
+		}
+		return axis(name, axis);
+	}
+
+	/**
+	 * Sweep a random sample of the grid rather than the full
+	 * Cartesian product. Points are drawn without replacement, the
+	 * full grid is swept when it holds no more than <i>points</i>.
+	 * @param points the number of grid points sampled
+	 * @param seed the seed of the random sample, equal seeds
+	 * sample equal points
+	 * @return the {@link OCPUSweep} builder
+	 */
+	public OCPUSweep sample(long points, long seed) {
+		if(points < 0)
+			throw new IllegalArgumentException("points < 0");
+		this.sample = points;
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Returns the number of points swept.
+	 * @return number of grid points
+	 */
+	public long size() {
+		long grid = grid();
+		return (sample >= 0 && sample < grid) ? sample : grid;
+	}
+
+	/**
+	 * Returns a lazy iterator over the points swept, each point
+	 * mapping axis names to values.
+	 * @return the grid points
+	 */
+	public Iterator<Map<String,Object>> points() {
+
+		final Iterator<Long> ordinals = ordinals();
+
+		return new Iterator<Map<String,Object>>() {
+			public boolean hasNext() {
+				return ordinals.hasNext();
+			}
+			public Map<String,Object> next() {
+				int[] point = point(ordinals.next());
+				Map<String,Object> map = new LinkedHashMap<String,Object>();
+				for(int a = 0; a < point.length; a++)
+					map.put(names.get(a), values.get(a).get(point[a]));
+				return map;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Start the sweep on the endpoints.
+	 * @param endpoints the OpenCPU server endpoints
+	 * @param concurrency number of points executed at once
+	 * on each endpoint
+	 * @param executor executor running the sweep
+	 * @return the {@link Results} of the sweep, filled in
+	 * as points complete
+	 * @throws OCPUException if the task specification is incomplete
+	 */
+	public Results run(Collection<String> endpoints,
+					   int concurrency,
+					   Executor executor) throws OCPUException {
+		return run(endpoints, concurrency, executor,
+				   OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Start the sweep on the endpoints.
+	 * @param endpoints the OpenCPU server endpoints
+	 * @param concurrency number of points executed at once
+	 * on each endpoint
+	 * @param executor executor running the sweep
+	 * @param transport the transport making HTTP requests
+	 * @return the {@link Results} of the sweep, filled in
+	 * as points complete
+	 * @throws OCPUException if the task specification is incomplete
+	 */
+	public Results run(Collection<String> endpoints,
+					   int concurrency,
+					   Executor executor,
+					   OCPUTransport transport) throws OCPUException {
+
+		if(endpoints.isEmpty())
+			throw new IllegalArgumentException("no endpoints");
+		if(concurrency < 1)
+			throw new IllegalArgumentException("concurrency < 1");
+
+		/*
+		 * Resolve the R call once per endpoint, failing the sweep
+		 * ahead of any execution when the task is incomplete.
+		 */
+		Map<String, URL> apiCalls = new LinkedHashMap<String, URL>();
+		for(String endpoint : endpoints)
+			apiCalls.put(endpoint, base.resolve(endpoint));
+
+		final Results results = new Results(names, size(),
+							apiCalls.size() * concurrency);
+		final Iterator<Long> ordinals = ordinals();
+		final String fixed = fixed();
+		final OCPUTransport sender = transport;
+
+		List<Runnable> slots = new ArrayList<Runnable>();
+		for(int c = 0; c < concurrency; c++) {
+			for(final Map.Entry<String, URL> apiCall : apiCalls.entrySet()) {
+				slots.add(new Runnable() {
+					public void run() {
+						try {
+							while(!results.cancelled) {
+								long ordinal;
+								synchronized(ordinals) {
+									if(!ordinals.hasNext())
+										break;
+									ordinal = ordinals.next();
+								}
+								sweep(ordinal, fixed, apiCall.getKey(),
+									  apiCall.getValue(), sender, results);
+							}
+						} finally {
+							results.exit();
+						}
+					}
+				});
+			}
+		}
+
+		for(int s = 0; s < slots.size(); s++) {
+			try {
+				executor.execute(slots.get(s));
+			} catch(RejectedExecutionException rex) {
+				results.cancel();
+				for(int r = s; r < slots.size(); r++)
+					results.exit();
+				throw rex;
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * Execute the R task on a single point of the grid.
+	 */
+	private void sweep(long ordinal,
+					   String fixed,
+					   String endpoint,
+					   URL apiCall,
+					   OCPUTransport transport,
+					   Results results) {
+
+		int[] point = point(ordinal);
+		Object[] row = new Object[point.length];
+		StringBuilder input = new StringBuilder("{").append(fixed);
+
+		for(int a = 0; a < point.length; a++) {
+			row[a] = values.get(a).get(point[a]);
+			if(input.length() > 1)
+				input.append(',');
+			input.append(gson.toJson(names.get(a))).append(':')
+				 .append(encoded.get(a)[point[a]]);
+		}
+		input.append('}');
+
+		OCPUResult oResult = null;
+		long start = System.currentTimeMillis();
+		try {
+			oResult = new PreparedTask(base, input.toString(),
+							endpoint, apiCall).execute(endpoint, transport);
+			/*
+			 * Script tasks without output have no result, record
+			 * the completed point as a result without output.
+			 */
+			if(oResult == null)
+				oResult = new OCPUResultImpl(true, input.toString(), null,
+							null, null, System.currentTimeMillis() - start)
+							.retain(base.options().retention());
+		} catch(Exception ex) {
+			oResult = new OCPUResultImpl(false, null, null,
+						"Task execution failed.", ex, 0L)
+						.retain(base.options().retention());
+		}
+		results.add(row, oResult);
+	}
+
+	/*
+	 * Input data of the base task without the axis arguments,
+	 * encoded as JSON object members.
+	 */
+	private String fixed() throws OCPUException {
+
+		String input = base.input();
+		if(input == null)
+			return "";
+
+		JsonObject members;
+		try {
+			members = new JsonParser().parse(input).getAsJsonObject();
+		} catch(Exception ex) {
+			throw new OCPUException("Task input data must be a JSON object.", ex);
+		}
+
+		for(String name : names)
+			members.remove(name);
+
+		String json = gson.toJson(members);
+		return json.substring(1, json.length() - 1);
+	}
+
+	/*
+	 * Number of points in the full Cartesian product of the axes.
+	 */
+	private long grid() {
+		long grid = 1L;
+		for(List<Object> axis : values) {
+			if(axis.size() > 0 && grid > Long.MAX_VALUE / axis.size())
+				throw new IllegalStateException("Sweep grid too large.");
+			grid = grid * axis.size();
+		}
+		return grid;
+	}
+
+	/*
+	 * Decode the ordinal of a grid point into the value index on
+	 * each axis, the last axis varying fastest.
+	 */
+	private int[] point(long ordinal) {
+		int[] point = new int[values.size()];
+		for(int a = point.length - 1; a >= 0; a--) {
+			int size = values.get(a).size();
+			point[a] = (int) (ordinal % size);
+			ordinal = ordinal / size;
+		}
+		return point;
+	}
+
+	/*
+	 * Lazy iterator over the ordinals of the points swept, in
+	 * order for the full grid, otherwise drawn at random without
+	 * replacement.
+	 */
+	private Iterator<Long> ordinals() {
+
+		final long grid = grid();
+		final long size = size();
+		final boolean sampled = (size < grid);
+		final Random random = new Random(seed);
+		final Set<Long> drawn = new HashSet<Long>();
+
+		return new Iterator<Long>() {
+			private long next = 0L;
+			public boolean hasNext() {
+				return next < size;
+			}
+			public Long next() {
+				if(next >= size)
+					throw new NoSuchElementException();
+				next++;
+				if(!sampled)
+					return next - 1;
+				Long ordinal;
+				do {
+					ordinal = (random.nextLong() >>> 1) % grid;
+				} while(!drawn.add(ordinal));
+				return ordinal;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Columnar results of a parameter sweep, one row per completed
+	 * grid point in order of completion. All methods return snapshots
+	 * and may be called while the sweep runs.
+	 */
+	public static final class Results {
+
+		private final List<String> axes;
+		private final long size;
+		private final List<List<Object>> columns = new ArrayList<List<Object>>();
+		private final List<OCPUResult> results = new ArrayList<OCPUResult>();
+		private final Map<List<Object>, Integer> index =
+								new HashMap<List<Object>, Integer>();
+		private final AtomicInteger running;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean cancelled;
+
+		private Results(List<String> axes, long size, int slots) {
+			this.axes = Collections.unmodifiableList(new ArrayList<String>(axes));
+			this.size = size;
+			this.running = new AtomicInteger(slots);
+			for(int a = 0; a < axes.size(); a++)
+				columns.add(new ArrayList<Object>());
+		}
+
+		/**
+		 * Returns the axis names of the sweep.
+		 * @return the axis names
+		 */
+		public List<String> axes() {
+			return axes;
+		}
+
+		/**
+		 * Returns the number of points in the sweep.
+		 * @return number of grid points
+		 */
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * Returns the number of points completed.
+		 * @return number of rows
+		 */
+		public synchronized int completed() {
+			return results.size();
+		}
+
+		/**
+		 * Returns the values of the axis on each row.
+		 * @param axis the axis name
+		 * @return the axis column
+		 */
+		public synchronized List<Object> column(String axis) {
+			int a = axes.indexOf(axis);
+			if(a < 0)
+				throw new IllegalArgumentException("Sweep axis " + axis + " undefined.");
+			return new ArrayList<Object>(columns.get(a));
+		}
+
+		/**
+		 * Returns the result of the R task on each row.
+		 * @return the result column
+		 */
+		public synchronized List<OCPUResult> results() {
+			return new ArrayList<OCPUResult>(results);
+		}
+
+		/**
+		 * Returns the named data output bound to the type on each
+		 * row, null on rows where the R task failed.
+		 * @param name the name of the data output
+		 * @param type the class of the output
+		 * @param <T> the output type
+		 * @return the output column
+		 * @throws OCPUException if an output can not be bound to the type
+		 */
+		public <T> List<T> outputs(String name,
+								   Class<T> type) throws OCPUException {
+			List<T> outputs = new ArrayList<T>();
+			for(OCPUResult oResult : results()) {
+				outputs.add(oResult.success() ?
+					oResult.output(name, type) : null);
+			}
+			return outputs;
+		}
+
+		/**
+		 * Returns the result of the R task at a grid point.
+		 * @param values the value on each axis, in axis order,
+		 * equal to the values the axes were defined with
+		 * @return the result, null if the point is not completed
+		 */
+		public synchronized OCPUResult result(Object... values) {
+			Integer row = index.get(Arrays.asList(values));
+			return (row != null) ? results.get(row) : null;
+		}
+
+		/**
+		 * Returns true once every point has completed, or once the
+		 * points in flight have completed on a cancelled sweep.
+		 * @return true if the sweep is done
+		 */
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		/**
+		 * Wait for the sweep to complete.
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public void await() throws InterruptedException {
+			done.await();
+		}
+
+		/**
+		 * Wait for the sweep to complete.
+		 * @param timeout the maximum time to wait
+		 * @param unit the unit of the timeout
+		 * @return true if the sweep completed
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		public boolean await(long timeout,
+							 TimeUnit unit) throws InterruptedException {
+			return done.await(timeout, unit);
+		}
+
+		/**
+		 * Stop starting points, points in flight complete.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		private synchronized void add(Object[] row, OCPUResult oResult) {
+			for(int a = 0; a < row.length; a++)
+				columns.get(a).add(row[a]);
+			index.put(Arrays.asList(row), results.size());
+			results.add(oResult);
+		}
+
+		private void exit() {
+			if(running.decrementAndGet() == 0)
+				done.countDown();
+		}
+	}
+
+}
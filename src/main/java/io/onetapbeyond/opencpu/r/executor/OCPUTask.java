@@ -15,6 +15,7 @@
  */
 package io.onetapbeyond.opencpu.r.executor;
 
+import java.lang.reflect.Type;
 import java.util.Map;
 
 /**
@@ -29,6 +30,13 @@ import java.util.Map;
  * <p>
  * All {@link OCPUTask} are serializable making them compatible
  * with Java cluster computing solutions, such as <i>Apache Spark</i>. 
+ * <p>
+ * All {@link OCPUTask} are immutable. A single instance can be
+ * executed repeatedly and concurrently from many threads.
+ * <p>
+ * Version 2.0 added {@link #execute(String, OCPUTransport)} and the
+ * rows methods. Implementations outside this library written against
+ * version 1.x must implement them.
  */
 public interface OCPUTask extends java.io.Serializable {
 
@@ -46,4 +54,51 @@ public interface OCPUTask extends java.io.Serializable {
 	 */
 	public OCPUResult execute(String endpoint);
 
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint
+	 * making HTTP requests through the provided {@link OCPUTransport}.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(String endpoint, OCPUTransport transport);
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * streaming the data frame returned by the R function, or the R
+	 * script output object, as rows. See {@link OCPURows}.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the row stream, each row a {@link java.util.Map}
+	 * @throws OCPUException if the R task execution fails
+	 */
+	public OCPURows<Map> rows(String endpoint) throws OCPUException;
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * streaming the data frame returned by the R function, or the R
+	 * script output object, as rows bound to the type.
+	 * @param <T> the row type
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param type the class of each row
+	 * @return the row stream
+	 * @throws OCPUException if the R task execution fails
+	 */
+	public <T> OCPURows<T> rows(String endpoint,
+								Class<T> type) throws OCPUException;
+
+	/**
+	 * Execute the R task on the OpenCPU server at the provided endpoint,
+	 * streaming the data frame returned by the R function, or the R
+	 * script output object, as rows bound to the generic type.
+	 * @param <T> the row type
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param type the type of each row
+	 * @param transport the transport making HTTP requests
+	 * @return the row stream
+	 * @throws OCPUException if the R task execution fails
+	 */
+	public <T> OCPURows<T> rows(String endpoint,
+								Type type,
+								OCPUTransport transport) throws OCPUException;
+
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import static io.onetapbeyond.opencpu.r.executor.util.OCPUConstants.*;
+import io.onetapbeyond.opencpu.r.executor.tasks.*;
+import java.net.URL;
+import java.util.Map;
+import com.google.gson.*;
+
+/**
+ * Prepared R task template. The R package, function, task type and
+ * OpenCPU server endpoint of an {@link OCPUTask} are validated and
+ * resolved once, leaving only input data to be bound per call:
+ * <pre>
+ * {@code
+ * OCPUTemplate oTemplate =
+ *     OCPUTemplate.prepare(OCPU.R().pkg(pName).function(fName).library(), endpoint);
+ * OCPUResult oResult = oTemplate.execute(fInput);
+ * }
+ * </pre>
+ * <p>
+ * An {@link OCPUTemplate} is immutable and can be shared
+ * between threads.
+ */
+public final class OCPUTemplate {
+
+	private static Gson gson = new Gson();
+
+	private final BaseTask prototype;
+	private final String serverEndpoint;
+	private final URL apiCall;
+
+	private OCPUTemplate(BaseTask prototype,
+						 String serverEndpoint,
+						 URL apiCall) {
+		this.prototype = prototype;
+		this.serverEndpoint = serverEndpoint;
+		this.apiCall = apiCall;
+	}
+
+	/**
+	 * Prepare a template for the {@link OCPUTask} on the OpenCPU
+	 * server at the default endpoint.
+	 *
+	 * @param task the {@link OCPUTask} built by {@link OCPU}.
+	 * @return prepared {@link OCPUTemplate}.
+	 * @throws OCPUException if the task specification is incomplete.
+	 */
+	public static OCPUTemplate prepare(OCPUTask task) throws OCPUException {
+		return prepare(task, OCPU_DEFAULT_ENDPOINT);
+	}
+
+	/**
+	 * Prepare a template for the {@link OCPUTask} on the OpenCPU
+	 * server at the provided endpoint. Any input data on the task
+	 * is ignored, input data is bound on each call.
+	 *
+	 * @param task the {@link OCPUTask} built by {@link OCPU}.
+	 * @param endpoint the OpenCPU server endpoint.
+	 * @return prepared {@link OCPUTemplate}.
+	 * @throws OCPUException if the task specification is incomplete.
+	 */
+	public static OCPUTemplate prepare(OCPUTask task,
+									   String endpoint) throws OCPUException {
+
+		if(!(task instanceof BaseTask))
+			throw new OCPUException("Task not built by OCPU.");
+
+		BaseTask prototype = (BaseTask) task;
+		return new OCPUTemplate(prototype, endpoint,
+								prototype.resolve(endpoint));
+	}
+
+	/**
+	 * Bind input data to the template.
+	 *
+	 * @param input a Map representing the JSON data input
+	 * @return an executable {@link OCPUTask}.
+	 * @throws OCPUException if input can not be converted to valid JSON
+	 */
+	public OCPUTask bind(Map input) throws OCPUException {
+
+		String json = null;
+
+		try {
+			json = gson.toJson(input);
+		} catch(Exception gex) {
+			throw new OCPUException("Task input data invalid.", gex);
+		}
+		return new PreparedTask(prototype, json, serverEndpoint, apiCall);
+	}
+
+	/**
+	 * Bind input data to the template and execute the resulting
+	 * {@link OCPUTask} on the prepared endpoint.
+	 *
+	 * @param input a Map representing the JSON data input
+	 * @return the result of the R task
+	 * @throws OCPUException if input can not be converted to valid JSON
+	 */
+	public OCPUResult execute(Map input) throws OCPUException {
+		return bind(input).execute(serverEndpoint);
+	}
+
+	/**
+	 * Returns the OpenCPU server endpoint of the template.
+	 * @return the OpenCPU server endpoint
+	 */
+	public String endpoint() {
+		return serverEndpoint;
+	}
+
+	public String toString() {
+		return apiCall.toString();
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.io.IOException;
+
+/**
+ * Transport used by all {@link OCPUTask} to make HTTP requests
+ * on the OpenCPU server. Built-in transports are available on
+ * {@link OCPUTransports}, the transport used by a task can be
+ * chosen on execution:
+ * <pre>
+ * {@code
+ * OCPUResult oResult = oTask.execute(endpoint, OCPUTransports.http2());
+ * }
+ * </pre>
+ * <p>
+ * Transport implementations must be safe for concurrent use.
+ */
+public interface OCPUTransport {
+
+	/**
+	 * Send the request on the OpenCPU server.
+	 *
+	 * @param request the request.
+	 * @return the response, which must be closed by the caller.
+	 * @throws IOException if the request fails.
+	 */
+	public OCPUResponse send(OCPURequest request) throws IOException;
+
+}
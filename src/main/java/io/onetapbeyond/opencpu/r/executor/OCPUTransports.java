@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.transports.URLConnectionTransport;
+
+/**
+ * Built-in {@link OCPUTransport} implementations and the default
+ * transport used by {@link OCPUTask#execute(String)}.
+ * <ul>
+ * <li>{@link #legacy()} - {@link java.net.HttpURLConnection}, one
+ * HTTP/1.1 connection per request in flight, any Java version.
+ * <li>{@link #http2()} - <i>java.net.http.HttpClient</i> multiplexing
+ * concurrent requests over few HTTP/2 connections, on Java 11 or later.
+ * <li>{@link OCPUMemoryTransport} - in-memory responses for tests.
+ * </ul>
+ */
+public final class OCPUTransports {
+
+	private static final String HTTP2_TRANSPORT =
+		"io.onetapbeyond.opencpu.r.executor.transports.HttpClientTransport";
+
+	private static final OCPUTransport legacy = new URLConnectionTransport();
+	private static volatile OCPUTransport http2;
+	private static volatile OCPUTransport defaultTransport = legacy;
+
+	private OCPUTransports() {}
+
+	/**
+	 * Returns the {@link java.net.HttpURLConnection} transport.
+	 * @return the legacy transport
+	 */
+	public static OCPUTransport legacy() {
+		return legacy;
+	}
+
+	/**
+	 * Returns the shared HTTP/2 transport when running on Java 11
+	 * or later, otherwise the legacy transport.
+	 * @return the HTTP/2 transport
+	 */
+	public static OCPUTransport http2() {
+
+		OCPUTransport transport = http2;
+
+		if(transport == null) {
+			synchronized(OCPUTransports.class) {
+				transport = http2;
+				if(transport == null) {
+					try {
+						transport = (OCPUTransport)
+							Class.forName(HTTP2_TRANSPORT).newInstance();
+					} catch(Throwable t) {
+						// Java 11 code path unavailable, fallback.
+						transport = legacy;
+					}
+					http2 = transport;
+				}
+			}
+		}
+		return transport;
+	}
+
+	/**
+	 * Returns the transport used by tasks executed without
+	 * an explicit {@link OCPUTransport}.
+	 * @return the default transport
+	 */
+	public static OCPUTransport getDefault() {
+		return defaultTransport;
+	}
+
+	/**
+	 * Set the transport used by tasks executed without
+	 * an explicit {@link OCPUTransport}.
+	 * @param transport the default transport
+	 */
+	public static void setDefault(OCPUTransport transport) {
+		if(transport == null)
+			throw new NullPointerException("transport");
+		defaultTransport = transport;
+	}
+
+}
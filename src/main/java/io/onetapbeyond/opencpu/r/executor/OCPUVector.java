@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a numeric R vector held as a JSON array in a
+ * file, typically a data output streamed to disk by an
+ * {@link OCPUTask}. The file is memory-mapped rather than read onto
+ * the Java heap and elements are located and parsed lazily, on first
+ * access. JSON <i>null</i> and the R <i>"NA"</i>, <i>"NaN"</i> and
+ * <i>"Inf"</i> encodings are returned as their {@code double}
+ * equivalents.
+ * <p>
+ * Files up to 2 GB are supported. Instances are safe for
+ * concurrent use.
+ */
+public final class OCPUVector {
+
+	private final MappedByteBuffer data;
+	private int[] offsets = new int[1024];
+	private int indexed;
+	private int scan;
+	private boolean complete;
+
+	private OCPUVector(MappedByteBuffer data) {
+		this.data = data;
+	}
+
+	/**
+	 * Map the JSON numeric vector held in the file.
+	 *
+	 * @param file the file holding a JSON array of numbers.
+	 * @return {@link OCPUVector} view of the file.
+	 * @throws IOException if the file can not be mapped.
+	 */
+	public static OCPUVector map(Path file) throws IOException {
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException(file + " exceeds 2 GB.");
+			return new OCPUVector(
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the number of elements in the vector. The first call
+	 * scans the remainder of the file.
+	 * @return the number of elements
+	 */
+	public synchronized int size() {
+		while(!complete)
+			index();
+		return indexed;
+	}
+
+	/**
+	 * Returns the element at the index.
+	 * @param index the element index
+	 * @return the element value
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 * @throws NumberFormatException if the element is not numeric
+	 */
+	public double get(int index) {
+
+		int offset;
+
+		synchronized(this) {
+			while(indexed <= index && !complete)
+				index();
+			if(index < 0 || index >= indexed)
+				throw new IndexOutOfBoundsException("Index: " + index);
+			offset = offsets[index];
+		}
+		return parse(offset);
+	}
+
+	/**
+	 * Copy all elements onto the Java heap.
+	 * @return the elements
+	 */
+	public double[] toArray() {
+		double[] values = new double[size()];
+		for(int i = 0; i < values.length; i++)
+			values[i] = get(i);
+		return values;
+	}
+
+	/*
+	 * Locate the next element, recording its offset.
+	 */
+	private void index() {
+
+		int limit = data.limit();
+
+		while(scan < limit) {
+			byte b = data.get(scan);
+			if(b == '[' || b == ',' || isSpace(b)) {
+				scan++;
+			} else {
+				break;
+			}
+		}
+
+		if(scan >= limit || data.get(scan) == ']') {
+			complete = true;
+			offsets = Arrays.copyOf(offsets, indexed);
+			return;
+		}
+
+		if(indexed == offsets.length)
+			offsets = Arrays.copyOf(offsets, indexed * 2);
+		offsets[indexed++] = scan;
+
+		while(scan < limit && !isEnd(data.get(scan)))
+			scan++;
+	}
+
+	private double parse(int offset) {
+
+		int end = offset;
+		int limit = data.limit();
+		while(end < limit && !isEnd(data.get(end)))
+			end++;
+
+		StringBuilder token = new StringBuilder(end - offset);
+		for(int i = offset; i < end; i++) {
+			byte b = data.get(i);
+			if(b != '"')
+				token.append((char) b);
+		}
+
+		String value = token.toString();
+
+		if(value.equals("null") || value.equals("NA"))
+			return Double.NaN;
+		if(value.equals("NaN"))
+			return Double.NaN;
+		if(value.equals("Inf"))
+			return Double.POSITIVE_INFINITY;
+		if(value.equals("-Inf"))
+			return Double.NEGATIVE_INFINITY;
+		return Double.parseDouble(value);
+	}
+
+	private static boolean isEnd(byte b) {
+		return b == ',' || b == ']' || isSpace(b);
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+}
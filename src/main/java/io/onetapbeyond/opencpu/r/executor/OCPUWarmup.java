@@ -0,0 +1,353 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Package warm-up and cold-start tracking per OpenCPU server
+ * endpoint. The first call to an R package on a fresh OpenCPU worker
+ * pays the R package load time. Warm-up tasks, typically one cheap
+ * call per package, are executed when an endpoint starts or (re)joins
+ * so that load time is paid ahead of real traffic:
+ * <pre>
+ * {@code
+ * OCPUWarmup warmup = new OCPUWarmup();
+ * warmup.add(OCPU.R().pkg("DESeq2").function("sizeFactors").input(probe).bioc());
+ * warmup.warm(endpoint);
+ * OCPUResult oResult = warmup.execute(oTask, endpoint);
+ * }
+ * </pre>
+ * <p>
+ * Executions made through {@link #execute(OCPUTask, String)} or
+ * {@link #warm(String)} are recorded as cold, when started before the
+ * package was known to be loaded on the endpoint, or warm. Comparing
+ * cold and warm latency on {@link Stats} shows the package load cost.
+ */
+public class OCPUWarmup {
+
+	private final List<OCPUTask> tasks = new CopyOnWriteArrayList<OCPUTask>();
+	private final ConcurrentMap<String, Stats> stats =
+							new ConcurrentHashMap<String, Stats>();
+
+	/**
+	 * Add a warm-up task, executed by {@link #warm(String)}.
+	 * @param task the warm-up task
+	 * @return this {@link OCPUWarmup}
+	 */
+	public OCPUWarmup add(OCPUTask task) {
+		tasks.add(task);
+		return this;
+	}
+
+	/**
+	 * Execute all warm-up tasks on the endpoint, sequentially.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the results of the warm-up tasks
+	 */
+	public List<OCPUResult> warm(String endpoint) {
+		return warm(endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute all warm-up tasks on the endpoint, sequentially.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the results of the warm-up tasks
+	 */
+	public List<OCPUResult> warm(String endpoint, OCPUTransport transport) {
+		List<OCPUResult> results = new ArrayList<OCPUResult>();
+		for(OCPUTask task : tasks)
+			results.add(execute(task, endpoint, transport));
+		return results;
+	}
+
+	/**
+	 * Execute all warm-up tasks on the endpoint concurrently
+	 * on the executor, waiting for completion.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the warm-up tasks
+	 * @return the results of the warm-up tasks
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<OCPUResult> warm(String endpoint,
+								 ExecutorService executor)
+									throws InterruptedException {
+		return warm(endpoint, executor, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute all warm-up tasks on the endpoint concurrently
+	 * on the executor, waiting for completion.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param executor executor running the warm-up tasks
+	 * @param transport the transport making HTTP requests
+	 * @return the results of the warm-up tasks
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public List<OCPUResult> warm(final String endpoint,
+								 ExecutorService executor,
+								 final OCPUTransport transport)
+									throws InterruptedException {
+
+		List<Callable<OCPUResult>> calls = new ArrayList<Callable<OCPUResult>>();
+		for(final OCPUTask task : tasks) {
+			calls.add(new Callable<OCPUResult>() {
+				public OCPUResult call() {
+					return execute(task, endpoint, transport);
+				}
+			});
+		}
+
+		List<OCPUResult> results = new ArrayList<OCPUResult>();
+		for(Future<OCPUResult> future : executor.invokeAll(calls)) {
+			try {
+				results.add(future.get());
+			} catch(ExecutionException eex) {
+				String msg = "Task execution failed.";
+				Throwable cause = eex.getCause();
+				results.add(new OCPUResultImpl(false, null, null, msg,
+								(cause instanceof Exception) ?
+									(Exception) cause :
+									new OCPUException(msg, cause), 0L));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Mark all packages on the endpoint cold, for example when the
+	 * endpoint restarts or (re)joins, then execute warm-up tasks.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the results of the warm-up tasks
+	 */
+	public List<OCPUResult> rejoin(String endpoint) {
+		return rejoin(endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Mark all packages on the endpoint cold, for example when the
+	 * endpoint restarts or (re)joins, then execute warm-up tasks.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the results of the warm-up tasks
+	 */
+	public List<OCPUResult> rejoin(String endpoint, OCPUTransport transport) {
+		reset(endpoint);
+		return warm(endpoint, transport);
+	}
+
+	/**
+	 * Mark all packages on the endpoint cold, keeping latency statistics.
+	 * @param endpoint the OpenCPU server endpoint
+	 */
+	public void reset(String endpoint) {
+		for(Stats s : stats.values()) {
+			if(s.endpoint.equals(endpoint))
+				s.warmSince.set(0L);
+		}
+	}
+
+	/**
+	 * Execute the R task on the endpoint, recording the
+	 * execution as cold or warm.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task, String endpoint) {
+		return execute(task, endpoint, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Execute the R task on the endpoint, recording the
+	 * execution as cold or warm.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(OCPUTask task,
+							  String endpoint,
+							  OCPUTransport transport) {
+
+		if(!(task instanceof BaseTask))
+			return task.execute(endpoint, transport);
+
+		Stats s = stats(endpoint, ((BaseTask) task).library());
+		long start = System.nanoTime();
+		OCPUResult oResult = task.execute(endpoint, transport);
+		/*
+		 * Script tasks without output have no result,
+		 * their call succeeded.
+		 */
+		s.record(start, System.nanoTime(),
+				 oResult == null || oResult.success());
+		return oResult;
+	}
+
+	/**
+	 * Determine if the R package of the task is loaded on the endpoint.
+	 * @param task the R task
+	 * @param endpoint the OpenCPU server endpoint
+	 * @return true when a call to the package completed on the endpoint
+	 * since it last started or (re)joined
+	 */
+	public boolean isWarm(OCPUTask task, String endpoint) {
+		if(!(task instanceof BaseTask))
+			return false;
+		Stats s = stats.get(key(endpoint, ((BaseTask) task).library()));
+		return s != null && s.warmSince.get() != 0L;
+	}
+
+	/**
+	 * Returns cold and warm execution statistics, one per
+	 * endpoint and R package.
+	 * @return the execution statistics
+	 */
+	public List<Stats> stats() {
+		return new ArrayList<Stats>(stats.values());
+	}
+
+	private Stats stats(String endpoint, String library) {
+		String key = key(endpoint, library);
+		Stats s = stats.get(key);
+		if(s == null) {
+			Stats created = new Stats(endpoint, library);
+			s = stats.putIfAbsent(key, created);
+			if(s == null)
+				s = created;
+		}
+		return s;
+	}
+
+	private static String key(String endpoint, String library) {
+		return endpoint + library;
+	}
+
+	/**
+	 * Cold and warm execution statistics of an R package on an endpoint.
+	 */
+	public static final class Stats {
+
+		private final String endpoint;
+		private final String library;
+		private final AtomicLong warmSince = new AtomicLong();
+		private final AtomicLong coldCalls = new AtomicLong();
+		private final AtomicLong coldNanos = new AtomicLong();
+		private final AtomicLong warmCalls = new AtomicLong();
+		private final AtomicLong warmNanos = new AtomicLong();
+
+		private Stats(String endpoint, String library) {
+			this.endpoint = endpoint;
+			this.library = library;
+		}
+
+		/*
+		 * Executions started before the package became warm are
+		 * cold, concurrent first calls all pay the load cost.
+		 */
+		private void record(long start, long end, boolean success) {
+
+			long since = warmSince.get();
+
+			if(since == 0L || start < since) {
+				coldCalls.incrementAndGet();
+				coldNanos.addAndGet(end - start);
+			} else {
+				warmCalls.incrementAndGet();
+				warmNanos.addAndGet(end - start);
+			}
+
+			if(success && since == 0L)
+				warmSince.compareAndSet(0L, end);
+		}
+
+		/**
+		 * Returns the OpenCPU server endpoint.
+		 * @return the endpoint
+		 */
+		public String endpoint() {
+			return endpoint;
+		}
+
+		/**
+		 * Returns the path of the R package, for example /library/stats.
+		 * @return the R package path
+		 */
+		public String library() {
+			return library;
+		}
+
+		/**
+		 * Returns the number of cold executions.
+		 * @return number of cold executions
+		 */
+		public long coldCalls() {
+			return coldCalls.get();
+		}
+
+		/**
+		 * Returns the number of warm executions.
+		 * @return number of warm executions
+		 */
+		public long warmCalls() {
+			return warmCalls.get();
+		}
+
+		/**
+		 * Returns mean latency (ms) of cold executions.
+		 * @return mean cold latency (ms), zero without cold executions
+		 */
+		public double coldMillis() {
+			return mean(coldNanos.get(), coldCalls.get());
+		}
+
+		/**
+		 * Returns mean latency (ms) of warm executions.
+		 * @return mean warm latency (ms), zero without warm executions
+		 */
+		public double warmMillis() {
+			return mean(warmNanos.get(), warmCalls.get());
+		}
+
+		/**
+		 * Returns estimated package load cost (ms), the difference
+		 * between mean cold and mean warm latency.
+		 * @return estimated load cost (ms), zero until both cold
+		 * and warm executions were recorded
+		 */
+		public double loadMillis() {
+			if(coldCalls.get() == 0 || warmCalls.get() == 0)
+				return 0.0;
+			return Math.max(0.0, coldMillis() - warmMillis());
+		}
+
+		private static double mean(long nanos, long calls) {
+			return (calls == 0) ? 0.0 : (nanos / 1e6) / calls;
+		}
+
+		public String toString() {
+			return "Stats [ " + endpoint + library +
+				   ", cold " + coldCalls() + ", warm " + warmCalls() + " ].";
+		}
+	}
+
+}
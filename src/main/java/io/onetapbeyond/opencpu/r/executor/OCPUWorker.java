@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUObjectInputStream;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+/**
+ * Worker executing a stream of serialized {@link OCPUTask} and
+ * writing a stream of serialized {@link OCPUResult}, so R calls can
+ * be scaled out across JVM hosts:
+ * <pre>
+ * {@code
+ * OCPUWorker worker = new OCPUWorker(endpoint, 32);
+ * worker.process(new FileInputStream(tasks), new FileOutputStream(results));
+ * ...
+ * worker.serve(new ServerSocket(7070));
+ * ...
+ * worker.close();
+ * }
+ * </pre>
+ * <p>
+ * The input stream holds tasks written using an
+ * {@link ObjectOutputStream}, read until the end of the stream. Up to
+ * <i>concurrency</i> tasks are executed at once, the worker stops
+ * reading while all are in flight. For each task the output stream,
+ * written using an {@link ObjectOutputStream}, holds the sequence
+ * number of the task in the input stream as a long followed by its
+ * {@link OCPUResult}, in order of completion. Objects other than
+ * tasks and script tasks without output produce a failed result,
+ * so every sequence number appears in the output stream. Writers of long task streams should
+ * call {@link ObjectOutputStream#reset()} periodically so the worker
+ * does not retain tasks already read.
+ * <p>
+ * Only classes of this library and the JDK types held by its tasks
+ * are deserialized, any other class in the input stream fails the
+ * stream. HTTP connections are reused across tasks by the transport,
+ * use {@link OCPUTransports#http2()} to multiplex tasks over few
+ * connections.
+ */
+public class OCPUWorker implements Closeable {
+
+	private final String endpoint;
+	private final int concurrency;
+	private final OCPUTransport transport;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Create a worker.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param concurrency maximum number of tasks executed at once
+	 */
+	public OCPUWorker(String endpoint, int concurrency) {
+		this(endpoint, concurrency, OCPUTransports.getDefault());
+	}
+
+	/**
+	 * Create a worker.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param concurrency maximum number of tasks executed at once,
+	 * across all streams processed by the worker
+	 * @param transport the transport making HTTP requests
+	 */
+	public OCPUWorker(String endpoint,
+					  int concurrency,
+					  OCPUTransport transport) {
+		if(concurrency < 1)
+			throw new IllegalArgumentException("concurrency < 1");
+		this.endpoint = endpoint;
+		this.concurrency = concurrency;
+		this.transport = transport;
+		this.executor = OCPUExecutors.newVirtualThreadExecutor();
+		this.permits = new Semaphore(concurrency);
+	}
+
+	/**
+	 * Execute the stream of tasks, writing the stream of results.
+	 * Returns once every task read has been executed and its result
+	 * written, the streams are left open.
+	 * @param in the serialized task stream
+	 * @param out the serialized result stream
+	 * @return the number of tasks read
+	 * @throws IOException if the streams can not be read or written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long process(InputStream in,
+						OutputStream out) throws IOException,
+												 InterruptedException {
+
+		/*
+		 * Write the result stream header ahead of reading the task
+		 * stream header, so a peer opening its streams in either
+		 * order does not deadlock.
+		 */
+		Results results = new Results(out);
+		ObjectInputStream tasks = new OCPUObjectInputStream(in);
+		long seq = 0L;
+
+		try {
+			for(;;) {
+				Object task;
+				try {
+					task = tasks.readObject();
+				} catch(EOFException eof) {
+					break;
+				} catch(ClassNotFoundException cex) {
+					throw new InvalidClassException(cex.getMessage());
+				}
+				results.check();
+				permits.acquire();
+				results.pending.incrementAndGet();
+				try {
+					executor.execute(new Execution(seq++, task, results));
+				} catch(RejectedExecutionException rex) {
+					permits.release();
+					results.complete();
+					throw rex;
+				}
+			}
+		} finally {
+			results.drain();
+		}
+		results.check();
+		return seq;
+	}
+
+	/**
+	 * Accept connections on the server socket, processing the task
+	 * stream of each connection and writing its result stream back,
+	 * until the server socket is closed.
+	 * @param server the server socket
+	 * @throws IOException if the server socket fails
+	 */
+	public void serve(ServerSocket server) throws IOException {
+
+		for(;;) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch(SocketException sex) {
+				if(server.isClosed())
+					return;
+				throw sex;
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						process(new BufferedInputStream(socket.getInputStream()),
+								new BufferedOutputStream(socket.getOutputStream()));
+						socket.shutdownOutput();
+					} catch(Exception ex) {
+						// Connection failed, remaining tasks are dropped.
+					} finally {
+						try {
+							socket.close();
+						} catch(IOException cex) {}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the maximum number of tasks executed at once.
+	 * @return the concurrency of the worker
+	 */
+	public int concurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Returns the number of tasks executed.
+	 * @return number of tasks executed
+	 */
+	public long processed() {
+		return processed.get();
+	}
+
+	/**
+	 * Returns the number of tasks that produced a failed result.
+	 * @return number of failed tasks
+	 */
+	public long failed() {
+		return failed.get();
+	}
+
+	/**
+	 * Stop the threads of the worker, close the server socket
+	 * passed to {@link #serve(ServerSocket)} first.
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	/*
+	 * Execution of a single task read from a stream.
+	 */
+	private final class Execution implements Runnable {
+
+		private final long seq;
+		private final Object task;
+		private final Results results;
+
+		private Execution(long seq, Object task, Results results) {
+			this.seq = seq;
+			this.task = task;
+			this.results = results;
+		}
+
+		public void run() {
+			try {
+				OCPUResult oResult;
+				try {
+					if(task instanceof OCPUTask)
+						oResult = ((OCPUTask) task).execute(endpoint, transport);
+					else
+						oResult = failure(new OCPUException("Task " + seq +
+									" is not an OCPUTask."));
+				} catch(Exception ex) {
+					oResult = failure(ex);
+				}
+				if(oResult == null)
+					oResult = failure(new OCPUException("Task has no result."));
+				processed.incrementAndGet();
+				if(!oResult.success())
+					failed.incrementAndGet();
+				results.write(seq, oResult);
+			} finally {
+				permits.release();
+				results.complete();
+			}
+		}
+	}
+
+	/*
+	 * Result stream of a task stream, written by concurrent
+	 * executions. An explicit lock rather than a monitor guards
+	 * the stream so virtual threads are not pinned while writing.
+	 */
+	private static final class Results {
+
+		private final ObjectOutputStream out;
+		private final Lock lock = new ReentrantLock();
+		private final Condition drained = lock.newCondition();
+		private final AtomicLong pending = new AtomicLong();
+		private volatile IOException failure;
+
+		private Results(OutputStream out) throws IOException {
+			this.out = new ObjectOutputStream(out);
+			this.out.flush();
+		}
+
+		private void write(long seq, OCPUResult oResult) {
+			lock.lock();
+			try {
+				if(failure != null)
+					return;
+				out.writeLong(seq);
+				out.writeObject(oResult);
+				/*
+				 * Results are not referenced again, drop them
+				 * from the stream handle table.
+				 */
+				out.reset();
+				out.flush();
+			} catch(IOException ioex) {
+				failure = ioex;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void complete() {
+			if(pending.decrementAndGet() == 0) {
+				lock.lock();
+				try {
+					drained.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		/*
+		 * Wait for executions in flight to write their results.
+		 */
+		private void drain() throws InterruptedException {
+			lock.lock();
+			try {
+				while(pending.get() > 0)
+					drained.await();
+				if(failure == null)
+					out.flush();
+			} catch(IOException ioex) {
+				failure = ioex;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void check() throws IOException {
+			if(failure != null)
+				throw failure;
+		}
+	}
+
+	private static OCPUResult failure(Exception ex) {
+		return new OCPUResultImpl(false, null, null,
+					"Task execution failed.", ex, 0L);
+	}
+
+}
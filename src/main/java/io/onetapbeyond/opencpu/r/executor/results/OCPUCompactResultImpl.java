@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.results;
+
+import io.onetapbeyond.opencpu.r.executor.*;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUAdapters;
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import com.google.gson.*;
+import com.google.gson.stream.*;
+
+/*
+ * OCPUCompactResultImpl holds the result data of a completed
+ * {@link OCPUResult} retained using a lean {@link OCPURetention}
+ * mode. Each output value is held as a String, as UTF-8 bytes or
+ * as a decoded double[], input data is not held.
+ */
+public class OCPUCompactResultImpl implements OCPUResult {
+
+	private final boolean success;
+	private final String[] names;
+	private final Object[] values;
+	private final String[] files;
+	private final String error;
+	private final OCPUException cause;
+	private final long timeTaken;
+
+	OCPUCompactResultImpl(OCPURetention retention,
+						  boolean success,
+						  String[] output,
+						  String[] files,
+						  String error,
+						  Exception cause,
+						  long timeTaken) {
+		this.success = success;
+		this.files = files;
+		this.error = error;
+		this.cause = compact(cause);
+		this.timeTaken = timeTaken;
+
+		if(output == null || output.length % 2 != 0) {
+			this.names = null;
+			this.values = null;
+		} else {
+			this.names = new String[output.length / 2];
+			this.values = new Object[output.length / 2];
+			for(int d=0; d < output.length; d = d + 2) {
+				names[d / 2] = output[d];
+				values[d / 2] = retain(retention, output[d+1]);
+			}
+		}
+	}
+
+    public boolean success() {
+    	return success;
+    }
+
+	/*
+	 * Input data is not retained.
+	 */
+	public Map input() {
+		return null;
+	}
+
+	/*
+	 * Return data outputs, decoded to String, List or Map
+	 * representation on each call.
+	 */
+	public Map output() {
+
+		if(names == null)
+			return null;
+
+		Map outputMap = new HashMap();
+
+		for(int d=0; d < names.length; d++) {
+
+			Object jsonData = null;
+
+			if(values[d] instanceof double[]) {
+				List<Double> vector = new ArrayList<Double>();
+				for(double value : (double[]) values[d])
+					vector.add(value);
+				jsonData = vector;
+			} else if(values[d] != null) {
+				String jsonString = text(values[d]);
+				try {
+					jsonData = gson.fromJson(jsonString, List.class);
+				} catch(Exception lex) {
+					try {
+						jsonData = gson.fromJson(jsonString, Map.class);
+					} catch(Exception mex) {
+						jsonData = jsonString;
+					}
+				}
+			}
+
+			outputMap.put(names[d], jsonData);
+		}
+
+		return outputMap;
+	}
+
+	public <T> T output(String name, Class<T> type) throws OCPUException {
+		return output(name, (Type) type);
+	}
+
+	/*
+	 * Return data output bound to the type. Decoded numeric vectors
+	 * are returned as is when bound to double[].
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T output(String name, Type type) throws OCPUException {
+
+		try {
+			if(names != null) {
+				for(int d=0; d < names.length; d++) {
+					if(!names[d].equals(name) || values[d] == null)
+						continue;
+					if(values[d] instanceof double[]) {
+						if(type == double[].class)
+							return (T) values[d];
+						return OCPUAdapters.fromJson(
+							gson.toJson(values[d]), type);
+					}
+					if(values[d] instanceof byte[])
+						return OCPUAdapters.fromJson(new InputStreamReader(
+							new ByteArrayInputStream((byte[]) values[d]),
+							StandardCharsets.UTF_8), type);
+					return OCPUAdapters.fromJson((String) values[d], type);
+				}
+			}
+
+			Path file = file(name);
+			if(file != null) {
+				try (Reader reader = Files.newBufferedReader(file,
+										StandardCharsets.UTF_8)) {
+					return OCPUAdapters.fromJson(reader, type);
+				}
+			}
+		} catch(Exception ex) {
+			throw new OCPUException("Task output " + name + " can not be " +
+									"bound to " + type + ".", ex);
+		}
+		return null;
+	}
+
+	public Path file(String name) {
+
+		if(files != null) {
+			for(int f=0; f < files.length; f = f + 2) {
+				if(files[f].equals(name))
+					return Paths.get(files[f+1]);
+			}
+		}
+		return null;
+	}
+
+	public OCPUVector vector(String name) throws IOException {
+
+		Path file = file(name);
+		return (file != null) ? OCPUVector.map(file) : null;
+	}
+
+    public String error() {
+    	return error;
+    }
+
+    public Exception cause() {
+    	return cause;
+    }
+
+	public long	timeTaken() {
+		return timeTaken;
+	}
+
+    public String toString() {
+    	String outcome = success ? "successful" : "failed";
+    	return "OCPUResult [ " + outcome + " ].";
+    }
+
+	private static Object retain(OCPURetention retention, String json) {
+
+		if(json == null || retention == OCPURetention.OUTPUT)
+			return json;
+
+		if(retention == OCPURetention.PRIMITIVE) {
+			double[] vector = decode(json);
+			if(vector != null)
+				return vector;
+		}
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Decode a JSON array of numbers as double[], null
+	 * when the JSON data is not a numeric vector.
+	 */
+	private static double[] decode(String json) {
+
+		try {
+			JsonReader reader = new JsonReader(new StringReader(json));
+			reader.setLenient(true);
+			if(reader.peek() != JsonToken.BEGIN_ARRAY)
+				return null;
+
+			double[] vector = new double[16];
+			int size = 0;
+
+			reader.beginArray();
+			while(reader.hasNext()) {
+				double value;
+				switch(reader.peek()) {
+					case NUMBER:
+						value = reader.nextDouble();
+						break;
+					case NULL:
+						reader.nextNull();
+						value = Double.NaN;
+						break;
+					case STRING:
+						value = special(reader.nextString());
+						break;
+					default:
+						return null;
+				}
+				if(size == vector.length)
+					vector = Arrays.copyOf(vector, size * 2);
+				vector[size++] = value;
+			}
+			reader.endArray();
+
+			if(reader.peek() != JsonToken.END_DOCUMENT)
+				return null;
+			return Arrays.copyOf(vector, size);
+
+		} catch(Exception ex) {
+			return null;
+		}
+	}
+
+	private static double special(String value) {
+		if(value.equals("NA") || value.equals("NaN"))
+			return Double.NaN;
+		if(value.equals("Inf"))
+			return Double.POSITIVE_INFINITY;
+		if(value.equals("-Inf"))
+			return Double.NEGATIVE_INFINITY;
+		throw new NumberFormatException(value);
+	}
+
+	/*
+	 * Keep message and HTTP status of the cause, drop its
+	 * stack trace and cause chain.
+	 */
+	private static OCPUException compact(Exception cause) {
+
+		if(cause == null)
+			return null;
+
+		int status = (cause instanceof OCPUException) ?
+			((OCPUException) cause).status() : 0;
+		String message = (cause instanceof OCPUException) ?
+			cause.getMessage() : cause.toString();
+		OCPUException compact = new OCPUException(message, status);
+		compact.setStackTrace(new StackTraceElement[0]);
+		return compact;
+	}
+
+	private static String text(Object value) {
+		if(value instanceof byte[])
+			return new String((byte[]) value, StandardCharsets.UTF_8);
+		return (String) value;
+	}
+
+	private static Gson gson = new Gson();
+}
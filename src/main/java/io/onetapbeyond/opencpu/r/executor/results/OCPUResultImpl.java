@@ -16,6 +16,11 @@
 package io.onetapbeyond.opencpu.r.executor.results;
 
 import io.onetapbeyond.opencpu.r.executor.*;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUAdapters;
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import com.google.gson.*;
 
@@ -28,6 +33,7 @@ public class OCPUResultImpl implements OCPUResult {
 	private boolean success;
 	private String input;
 	private String[] output;
+	private String[] files;
 	private String error;
 	private Exception cause;
 	private long timeTaken;
@@ -38,9 +44,20 @@ public class OCPUResultImpl implements OCPUResult {
 						String error,
 						Exception cause,
 						long timeTaken) {
+		this(success, input, output, null, error, cause, timeTaken);
+	}
+
+	public OCPUResultImpl(boolean success,
+						String input,
+						String[] output,
+						String[] files,
+						String error,
+						Exception cause,
+						long timeTaken) {
 		this.success = success;
 		this.input = input;
 		this.output = output;
+		this.files = files;
 		this.error = error;
 		this.cause = cause;
 		this.timeTaken = timeTaken;
@@ -114,6 +131,66 @@ public class OCPUResultImpl implements OCPUResult {
 		return outputMap;
 	}
 
+	/*
+	 * Return data output bound to the type.
+	 */
+	public <T> T output(String name, Class<T> type) throws OCPUException {
+		return output(name, (Type) type);
+	}
+
+	/*
+	 * Return data output bound to the generic type, decoded
+	 * directly from the JSON data string or from the file holding
+	 * data output streamed to disk.
+	 */
+	public <T> T output(String name, Type type) throws OCPUException {
+
+		try {
+			if(output != null) {
+				for(int d=0; d < output.length - 1; d = d + 2) {
+					if(output[d].equals(name) && output[d+1] != null)
+						return OCPUAdapters.fromJson(output[d+1], type);
+				}
+			}
+
+			Path file = file(name);
+			if(file != null) {
+				try (Reader reader = Files.newBufferedReader(file,
+										StandardCharsets.UTF_8)) {
+					return OCPUAdapters.fromJson(reader, type);
+				}
+			}
+		} catch(Exception ex) {
+			throw new OCPUException("Task output " + name + " can not be " +
+									"bound to " + type + ".", ex);
+		}
+		return null;
+	}
+
+	/*
+	 * Return file holding data output streamed to disk.
+	 */
+	public Path file(String name) {
+
+		if(files != null) {
+			for(int f=0; f < files.length; f = f + 2) {
+				if(files[f].equals(name))
+					return Paths.get(files[f+1]);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Return memory-mapped view of numeric vector data
+	 * output streamed to disk.
+	 */
+	public OCPUVector vector(String name) throws IOException {
+
+		Path file = file(name);
+		return (file != null) ? OCPUVector.map(file) : null;
+	}
+
 	/*
 	 * Retrieve error message if task execution failed.
 	 */
@@ -135,6 +212,16 @@ public class OCPUResultImpl implements OCPUResult {
 		return timeTaken;
 	}
 
+	/*
+	 * Return this result retained using the lean retention mode.
+	 */
+	public OCPUResult retain(OCPURetention retention) {
+		if(retention == null || retention == OCPURetention.FULL)
+			return this;
+		return new OCPUCompactResultImpl(retention, success, output,
+										 files, error, cause, timeTaken);
+	}
+
     public String toString() {
     	String outcome = success ? "successful" : "failed";
     	return "OCPUResult [ " + outcome + " ].";
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.results;
+
+import io.onetapbeyond.opencpu.r.executor.*;
+import io.onetapbeyond.opencpu.r.executor.util.OCPUAdapters;
+import java.io.*;
+import java.lang.reflect.Type;
+import java.util.NoSuchElementException;
+
+/*
+ * OCPURowsImpl decodes ndjson rows from an open
+ * OpenCPU response, one line at a time.
+ */
+public class OCPURowsImpl<T> implements OCPURows<T> {
+
+	private final OCPUResponse resp;
+	private final BufferedReader reader;
+	private final Type type;
+	private String line;
+	private long count;
+	private boolean closed;
+
+	public OCPURowsImpl(OCPUResponse resp, Type type) throws IOException {
+		this.resp = resp;
+		this.type = type;
+		this.reader = new BufferedReader(
+			new InputStreamReader(resp.body(), "utf-8"));
+	}
+
+	/*
+	 * Determine if another row is available, reading ahead one
+	 * line. The stream closes once the last row is read.
+	 */
+	public boolean hasNext() {
+
+		if(line != null)
+			return true;
+		if(closed)
+			return false;
+
+		try {
+			do {
+				line = reader.readLine();
+			} while(line != null && line.trim().isEmpty());
+		} catch(IOException iex) {
+			fail(iex);
+		}
+
+		if(line == null)
+			close();
+		return line != null;
+	}
+
+	/*
+	 * Decode the next row.
+	 */
+	public T next() {
+
+		if(!hasNext())
+			throw new NoSuchElementException();
+
+		String row = line;
+		line = null;
+
+		try {
+			T value = OCPUAdapters.fromJson(row, type);
+			count++;
+			return value;
+		} catch(Exception ex) {
+			fail(ex);
+			return null;
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("remove");
+	}
+
+	public long count() {
+		return count;
+	}
+
+	public void close() {
+		if(closed)
+			return;
+		closed = true;
+		line = null;
+		try {
+			reader.close();
+		} catch(IOException iex) {
+		} finally {
+			try {
+				resp.close();
+			} catch(IOException iex) {}
+		}
+	}
+
+	private void fail(Exception ex) {
+		close();
+		throw new IllegalStateException("Row " + count + " read failed.", ex);
+	}
+
+}
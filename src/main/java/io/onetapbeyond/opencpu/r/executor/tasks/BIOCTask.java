@@ -20,18 +20,18 @@ import io.onetapbeyond.opencpu.r.executor.OCPUException;
 
 public class BIOCTask extends BaseTask {
 
-	BIOCTask() {}
-
 	public BIOCTask(String user, String pkg,
 			  		String function, boolean script,
 			  		String input, String output) {
-		this.user = null; // unused
-		this.pkg = (pkg != null) ? pkg  : UNDEFINED;	
-		this.function = (function != null) ? function  : UNDEFINED;	
-		this.script = script;
-		this.input = input;
-		this.output = output;
-		this.endpoint = super.endpoint(BIOC_CALL_BASE);
+		this(user, pkg, function, script, input, output,
+			 TaskOptions.DEFAULT);
+	}
+
+	public BIOCTask(String user, String pkg,
+			  		String function, boolean script,
+			  		String input, String output, TaskOptions options) {
+		super(BIOC_CALL_BASE, null /* unused */,
+			  pkg, function, script, input, output, options);
 	}
 
 }
@@ -17,23 +17,71 @@ package io.onetapbeyond.opencpu.r.executor.tasks;
 
 import static io.onetapbeyond.opencpu.r.executor.util.OCPUConstants.*;
 import io.onetapbeyond.opencpu.r.executor.*;
-import io.onetapbeyond.opencpu.r.executor.results.OCPUResultImpl;
+import io.onetapbeyond.opencpu.r.executor.results.*;
 import java.io.*;
+import java.lang.reflect.Type;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
 import com.google.gson.*;
 
 public abstract class BaseTask implements OCPUTask {
 
-	protected String user; 
-	protected String pkg;
-	protected String function;
-	protected boolean script;
-	protected String input;
-	protected String output;
-	protected String endpoint;
+	protected final String user; 
+	protected final String pkg;
+	protected final String function;
+	protected final boolean script;
+	protected final String input;
+	protected final String output;
+	protected final String endpoint;
+	protected final String library;
+	protected final TaskOptions options;
 
-	private String[] outputData = null;
+	/*
+	 * Tasks are immutable, all state of an execution is local
+	 * to the call so a task can be executed concurrently
+	 * and repeatedly.
+	 */
+	protected BaseTask(String base, String user,
+					   String pkg, String function,
+					   boolean script, String input,
+					   String output, TaskOptions options) {
+		this.user = user;
+		this.pkg = (pkg != null) ? pkg  : UNDEFINED;	
+		this.function = (function != null) ? function  : UNDEFINED;	
+		this.script = script;
+		this.input = input;
+		this.output = output;
+		this.options = (options != null) ? options : TaskOptions.DEFAULT;
+		this.endpoint = endpoint(base);
+		this.library = (user != null) ?
+			base + user + SLASH + this.pkg : base + this.pkg;
+	}
+
+	/*
+	 * Copy the R call of the prototype task, binding new input data.
+	 */
+	protected BaseTask(BaseTask prototype, String input) {
+		this(prototype, input, prototype.options);
+	}
+
+	/*
+	 * Copy the R call of the prototype task, binding new
+	 * input data and options.
+	 */
+	protected BaseTask(BaseTask prototype, String input,
+					   TaskOptions options) {
+		this.user = prototype.user;
+		this.pkg = prototype.pkg;
+		this.function = prototype.function;
+		this.script = prototype.script;
+		this.input = input;
+		this.output = prototype.output;
+		this.endpoint = prototype.endpoint;
+		this.library = prototype.library;
+		this.options = options;
+	}
 
 	/*
 	 * Execute the R task.
@@ -49,30 +97,77 @@ public abstract class BaseTask implements OCPUTask {
 	 * @return the result of the R task
 	 */
 	public OCPUResult execute(String serverEndpoint) {
+		return execute(serverEndpoint, OCPUTransports.getDefault());
+	}
 
-		OCPUResult oResult = null;
+	/*
+	 * Execute the R task.
+	 * @param endpoint the OpenCPU server endpoint
+	 * @param transport the transport making HTTP requests
+	 * @return the result of the R task
+	 */
+	public OCPUResult execute(String serverEndpoint,
+							  OCPUTransport transport) {
 
-		try {
+		long execstart = System.currentTimeMillis();
+
+		URL apiCall = null;
 
-			long execstart = System.currentTimeMillis();
+		try {
 
 			/*
 			 * Validate R task specification ahead of
 			 * execution attempt on the OCPU server.
 			 */
-			validate();
+			apiCall = resolve(serverEndpoint);
+
+		} catch(Exception ex) {
+			String msg = "Task execution failed.";
+            return new OCPUResultImpl(false, input, null, msg, ex, 0L)
+            			.retain(options.retention());
+		}
+
+		return execute(serverEndpoint, apiCall, transport, execstart);
+	}
+
+	/*
+	 * Validate the R task specification and resolve the URL of
+	 * the R call on the OpenCPU server endpoint.
+	 */
+	public URL resolve(String serverEndpoint) throws OCPUException {
+
+		validate();
+
+		String apiEndpoint = serverEndpoint + endpoint;
+
+		try {
+			return new URL(apiEndpoint);
+		} catch(MalformedURLException mex) {
+			throw new OCPUException(apiEndpoint + " invalid.", mex);
+		}
+	}
+
+	/*
+	 * Execute the validated R task on the resolved URL of the
+	 * R call on the OpenCPU server endpoint.
+	 */
+	protected OCPUResult execute(String serverEndpoint,
+								 URL apiCall,
+								 OCPUTransport transport,
+								 long execstart) {
 
-			String apiEndpoint = serverEndpoint + endpoint;
-	        HttpURLConnection conn = connect(apiEndpoint,
-	        								 input,
-	        								 JSON_REQ_TYPE,
-	        								 METHOD_POST);
+		OCPUResultImpl oResult = null;
+		OCPUResponse resp = null;
 
-	        int respCode = conn.getResponseCode();
+		try {
+
+	        resp = call(transport, apiCall);
+
+	        int respCode = resp.status();
 			if(respCode == HttpURLConnection.HTTP_OK ||
 				respCode == HttpURLConnection.HTTP_CREATED) {
 
-				String ocpuSession = conn.getHeaderField(OCPU_X_SESSION);
+				String ocpuSession = resp.header(OCPU_X_SESSION);
 
 	        	if(endpoint.endsWith(JSON)) {
 
@@ -81,23 +176,26 @@ public abstract class BaseTask implements OCPUTask {
 		        	 * return value on directly on response.
 		        	 */
 
-			        BufferedReader respBuf = new BufferedReader(
-			        	new InputStreamReader(conn.getInputStream(),"utf-8"));  
-			 
-			        StringBuilder respData = new StringBuilder();  
-		            String text = null;
-		            while ((text = respBuf.readLine()) != null) {  
-			            respData.append(text + "\n");  
-		            }
-					respBuf.close();
+					String objAsJson = null;
+					String[] outputFiles = null;
 
-					String objAsJson = respData.toString();
+					if(options.outputFile() == null) {
+						objAsJson = read(resp, options.maxResponseSize());
+					} else {
+						/*
+						 * Stream large return value to file, capture
+						 * in serializable form: ["function", "path"].
+						 */
+						store(resp, options.outputFile());
+						outputFiles = new String[] { function,
+													 options.outputFile() };
+					}
 
 					/*
 					 * Function call has single JSON response. Capture
 					 * in serializable form: ["function", "jsonValue"].
 					 */
-					outputData = new String[2];
+					String[] outputData = new String[2];
 					outputData[0] = function;
 					outputData[1] = objAsJson;
 
@@ -105,8 +203,8 @@ public abstract class BaseTask implements OCPUTask {
 					 * Build execution result for successful function call.
 					 */
 					oResult =
-						new OCPUResultImpl(true, input, outputData, null,
-							null, (System.currentTimeMillis()-execstart));
+						new OCPUResultImpl(true, input, outputData, outputFiles,
+							null, null, (System.currentTimeMillis()-execstart));
 
 				} else {
 
@@ -117,38 +215,41 @@ public abstract class BaseTask implements OCPUTask {
 
 					if(output != null) {
 
-						outputData = new String[2];
+						String[] outputData = new String[2];
+						String[] outputFiles = null;
+
+						/*
+						 * Fetch the requested object, a failed fetch,
+						 * including a response larger than the maximum
+						 * response size, fails the task as it does for
+						 * a function call.
+						 */
+						String objAsJson = fetchOutput(transport,
+													   output,
+													   ocpuSession,
+													   serverEndpoint);
+						/*
+						 * Capture in serializable form:
+						 * ["output", "jsonValue"].
+						 */
+						outputData[0] = output;
+						outputData[1] = objAsJson;
 
 						/*
-						 * For the requested object, capture in
-						 * serializable form: ["output", "jsonValue"].
+						 * Object streamed to file, capture in
+						 * serializable form: ["output", "path"].
 						 */
-						int objectIndex = 0;
-
-						try {
-
-							String objAsJson = fetchOutput(output,
-														   ocpuSession,
-														   serverEndpoint);
-							/*
-							 * Capture in serializable form:
-							 * ["output", "jsonValue"].
-							 */
-							outputData[0] = output;
-							outputData[1] = objAsJson;
-
-						} catch(Exception dex) {
-							// Swallow, store null, continue.
-							outputData[0] = output;
-							outputData[1] = null;
-						}
+						if(options.outputFile() != null)
+							outputFiles = new String[] { output,
+											options.outputFile() };
 
 						/*
 						 * Build execution result for successful script call.
 						 */
 						oResult =
-							new OCPUResultImpl(true, input, outputData, null,
-								null, (System.currentTimeMillis()-execstart));
+							new OCPUResultImpl(true, input, outputData,
+								outputFiles, null, null,
+								(System.currentTimeMillis()-execstart));
 
 					} // output != null
 
@@ -158,14 +259,16 @@ public abstract class BaseTask implements OCPUTask {
 
 	            StringBuffer causeMsg = new StringBuffer()
 	            						.append("HTTP ")
-	            						.append(conn.getResponseMessage())
+	            						.append(resp.message() != null ?
+	            								resp.message() : respCode)
 	            						.append(", error code ")
-	            						.append(conn.getResponseCode())
+	            						.append(respCode)
 	            						.append(".");
 	            StringBuffer errMsg = new StringBuffer(toString())
 	            						.append(": ")
 	            						.append(causeMsg);
-	            OCPUException oEx = new OCPUException(causeMsg.toString());
+	            OCPUException oEx =
+	            	new OCPUException(causeMsg.toString(), respCode);
 
 	            oResult =
 	            	new OCPUResultImpl(false, input, null, errMsg.toString(), oEx, 0L);
@@ -174,16 +277,146 @@ public abstract class BaseTask implements OCPUTask {
 		} catch(Exception ex) {
 			String msg = "Task execution failed.";
             oResult = new OCPUResultImpl(false, input, null, msg, ex, 0L);
+		} finally {
+			close(resp);
 		}
 
-		return oResult;
+		/*
+		 * Script call without output has no result data.
+		 */
+		return (oResult != null) ?
+			oResult.retain(options.retention()) : null;
 
 	}
 
+	/*
+	 * Execute the R task streaming the data frame returned by the
+	 * R function, or the R script output object, as ndjson rows.
+	 */
+	public OCPURows<Map> rows(String serverEndpoint) throws OCPUException {
+		return rows(serverEndpoint, Map.class, OCPUTransports.getDefault());
+	}
+
+	public <T> OCPURows<T> rows(String serverEndpoint,
+								Class<T> type) throws OCPUException {
+		return rows(serverEndpoint, type, OCPUTransports.getDefault());
+	}
+
+	public <T> OCPURows<T> rows(String serverEndpoint,
+								Type type,
+								OCPUTransport transport) throws OCPUException {
+
+		URL apiCall = resolve(serverEndpoint);
+		OCPUResponse resp = null;
+		boolean streaming = false;
+
+		try {
+
+			if(!script) {
+
+				String call = apiCall.toString();
+				apiCall = new URL(call.substring(0,
+						call.length() - JSON.length()) + NDJSON);
+				resp = call(transport, apiCall);
+				verify(resp, apiCall);
+
+			} else {
+
+				if(output == null)
+					throw new OCPUException("Task script output undefined.");
+
+				resp = call(transport, apiCall);
+				verify(resp, apiCall);
+				String ocpuSession = resp.header(OCPU_X_SESSION);
+				close(resp);
+
+				/*
+				 * Fetch the R script output object from
+				 * the session as ndjson.
+				 */
+				apiCall = new URL(serverEndpoint +
+						OCPU_SESSION_DATA(ocpuSession, output, NDJSON));
+				resp = connect(transport, apiCall, null,
+							   JSON_REQ_TYPE, METHOD_GET);
+				verify(resp, apiCall);
+			}
+
+			OCPURows<T> rows = new OCPURowsImpl<T>(resp, type);
+			streaming = true;
+			return rows;
+
+		} catch(IOException iex) {
+			throw new OCPUException(apiCall + " execution failed.", iex);
+		} finally {
+			if(!streaming)
+				close(resp);
+		}
+	}
+
 	public String toString() {
 		return endpoint;
 	}
 
+	public TaskOptions options() {
+		return options;
+	}
+
+	/*
+	 * Input data encoded as JSON, null when not specified.
+	 */
+	public String input() {
+		return input;
+	}
+
+	/*
+	 * Estimated heap bytes of the encoded input data, file
+	 * arguments are streamed from disk and not counted.
+	 */
+	public long inputBytes() {
+		return (input != null) ? input.length() : 0L;
+	}
+
+	/*
+	 * Path of the R package on the OpenCPU server, for example
+	 * /library/stats or /github/openmhealth/dpu.mobility.
+	 */
+	public String library() {
+		return library;
+	}
+
+	/*
+	 * Identity of the R call made by this task on the OpenCPU
+	 * server endpoint. Tasks with equal signatures make identical
+	 * requests and so produce equivalent results, including where
+	 * output is written, the response size limit and the data
+	 * retained by the result.
+	 */
+	public String signature(String serverEndpoint) {
+
+		StringBuffer sb = new StringBuffer(serverEndpoint)
+							  .append(endpoint);
+
+		if(output != null)
+			sb.append(SLASH).append(output);
+
+		if(!options.files().isEmpty())
+			sb.append(options.files());
+
+		if(!options.sessions().isEmpty())
+			sb.append(options.sessions());
+		else if(!options.datasets().isEmpty())
+			sb.append(options.datasets());
+
+		if(options.outputFile() != null)
+			sb.append(" > ").append(options.outputFile());
+
+		sb.append(' ').append(options.retention());
+		if(options.maxResponseSize() > 0)
+			sb.append(' ').append(options.maxResponseSize());
+
+		return sb.append('\n').append(input).toString();
+	}
+
 	protected String endpoint(String base) {
 
 		String type = script ? SCRIPT : FUNCTION;
@@ -204,50 +437,129 @@ public abstract class BaseTask implements OCPUTask {
 	private void validate() throws OCPUException {
 		if(endpoint.contains(UNDEFINED))
 			throw new OCPUException("Task specification incomplete.");
+		if(!options.sessions().keySet()
+				.containsAll(options.datasets().keySet()))
+			throw new OCPUException("Task dataset unresolved, " +
+				"execute using OCPUDatasets.");
 	}
 
-	private HttpURLConnection connect(String apiEndpoint,
-									  String reqData,
-									  String reqType,
-									  String reqMethod) throws OCPUException {
+	/*
+	 * Execute the R function call keeping the return value on
+	 * the OpenCPU server, return the key of the session holding it.
+	 */
+	public String session(String serverEndpoint,
+						  OCPUTransport transport) throws OCPUException {
+
+		validate();
+
+		String call = endpoint.endsWith(SLASH + JSON) ?
+			endpoint.substring(0, endpoint.length() - JSON.length() - 1) :
+			endpoint;
 
-        HttpURLConnection conn = null;
+		OCPUResponse resp = null;
 
 		try {
 
-			URL apiCall = new URL(apiEndpoint);
-	        conn = (HttpURLConnection)apiCall.openConnection();
+			resp = connect(transport,
+						   new URL(serverEndpoint + call),
+						   input,
+						   JSON_REQ_TYPE,
+						   METHOD_POST);
 
-	        conn.setRequestProperty("Content-Type", reqType);
-	        conn.setRequestProperty("Accept", ACCEPT_REQ_TYPE);
-	        conn.setRequestMethod(reqMethod);
+			String ocpuSession = resp.header(OCPU_X_SESSION);
 
-	        conn.setDoInput(true);
+			if(resp.status() != HttpURLConnection.HTTP_CREATED ||
+				ocpuSession == null)
+				throw new OCPUException(call + " session failed, " +
+					"error code " + resp.status() + ".", resp.status());
 
-	        if(reqData != null) {
+			return ocpuSession;
 
-		        conn.setDoOutput(true);
-		        OutputStream os = conn.getOutputStream();
-		        os.write(reqData.getBytes("UTF-8"));
-	        	os.close();	
-	        }
+		} catch(MalformedURLException mex) {
+			throw new OCPUException(serverEndpoint + call + " invalid.", mex);
+		} finally {
+			close(resp);
+		}
+	}
+
+	/*
+	 * Call with JSON input arguments, or as multipart/form-data
+	 * when the call has file or session arguments.
+	 */
+	private OCPUResponse call(OCPUTransport transport,
+							  URL apiCall) throws OCPUException {
+		return options.files().isEmpty() && options.sessions().isEmpty() ?
+			connect(transport, apiCall, input, JSON_REQ_TYPE, METHOD_POST) :
+			upload(transport, apiCall);
+	}
+
+	/*
+	 * Fail on OpenCPU responses other than HTTP 200 or 201.
+	 */
+	private static void verify(OCPUResponse resp,
+							   URL apiCall) throws OCPUException {
+		int respCode = resp.status();
+		if(respCode != HttpURLConnection.HTTP_OK &&
+			respCode != HttpURLConnection.HTTP_CREATED)
+			throw new OCPUException(apiCall + " failed, error code " +
+									respCode + ".", respCode);
+	}
+
+	private OCPUResponse connect(OCPUTransport transport,
+								 URL apiCall,
+								 String reqData,
+								 String reqType,
+								 String reqMethod) throws OCPUException {
+
+		try {
+
+			byte[] body = (reqData != null) ? reqData.getBytes("UTF-8") : null;
+			return transport.send(new OCPURequest(reqMethod,
+												  apiCall,
+												  reqType,
+												  ACCEPT_REQ_TYPE,
+												  body));
 
 		} catch(Exception ex) {
-			throw new OCPUException(apiEndpoint + " execution failed.", ex);
+			throw new OCPUException(apiCall + " execution failed.", ex);
 		}
+	}
+
+	/*
+	 * Call with JSON input arguments and file arguments
+	 * streamed as multipart/form-data.
+	 */
+	private OCPUResponse upload(OCPUTransport transport,
+								URL apiCall) throws OCPUException {
+
+		try {
+
+			MultipartContent content =
+				new MultipartContent(input,
+									 options.files(),
+									 options.sessions());
+			return transport.send(new OCPURequest(METHOD_POST,
+												  apiCall,
+												  content.contentType(),
+												  ACCEPT_REQ_TYPE,
+												  content));
 
-		return conn;
+		} catch(Exception ex) {
+			throw new OCPUException(apiCall + " execution failed.", ex);
+		}
 	}
 
 	/*
 	 * Fetch workspace object data as JSON from OCPU session.
 	 */
-	private String fetchOutput(String objectName,
+	private String fetchOutput(OCPUTransport transport,
+							   String objectName,
 							   String ocpuSession,
 							   String ocpuEndpoint)
 									throws OCPUException {
 
         String objAsJson = null;
+        OCPUResponse dataResp = null;
 
 		try {
 
@@ -255,42 +567,113 @@ public abstract class BaseTask implements OCPUTask {
 				ocpuEndpoint +
 				OCPU_SESSION_DATA(ocpuSession, objectName);
 
-	        HttpURLConnection dataConn = connect(fetchEndpoint,
-		        								 null,
-		        								 JSON_REQ_TYPE,
-		        								 METHOD_GET);
-
-	        int respCode = dataConn.getResponseCode();
-
-			if(respCode == HttpURLConnection.HTTP_OK) {
-
-		        BufferedReader respBuf = new BufferedReader(
-		        	new InputStreamReader(dataConn.getInputStream(), "utf-8"));  
-		 
-		        StringBuilder respData = new StringBuilder();  
-	            String text = null;
-	            while ((text = respBuf.readLine()) != null) {  
-		            respData.append(text + "\n");  
-	            }
-				respBuf.close();
-
-				objAsJson = respData.toString();
+	        dataResp = connect(transport,
+	        				   new URL(fetchEndpoint),
+	        				   null,
+	        				   JSON_REQ_TYPE,
+	        				   METHOD_GET);
+
+			if(dataResp.status() == HttpURLConnection.HTTP_OK) {
+				if(options.outputFile() == null)
+					objAsJson = read(dataResp, options.maxResponseSize());
+				else
+					store(dataResp, options.outputFile());
 			} else {
-
+				throw new OCPUException("HTTP error code " +
+										dataResp.status() + ".");
 			}
 
 		} catch(Exception fex) {
 			throw new OCPUException("OCPU fetch " +
 										objectName + " failed.", fex);
+		} finally {
+			close(dataResp);
 		}
 
 		return objAsJson;
 	}
 
+	/*
+	 * Read response body as UTF-8 text, line by line. Bodies
+	 * larger than maxSize bytes fail, zero means no limit.
+	 */
+	private static String read(OCPUResponse resp,
+							   long maxSize) throws IOException {
+
+		InputStream body = (maxSize > 0) ?
+			new LimitedInputStream(resp.body(), maxSize) : resp.body();
+        BufferedReader respBuf = new BufferedReader(
+        	new InputStreamReader(body, "utf-8"));  
+ 
+        StringBuilder respData = new StringBuilder();  
+        String text = null;
+        while ((text = respBuf.readLine()) != null) {  
+            respData.append(text).append('\n');  
+        }
+		respBuf.close();
+
+		return respData.toString();
+	}
+
+	/*
+	 * Stream response body into file without buffering the body
+	 * in memory. The body is written to a temporary file beside it,
+	 * then moved over the file, so concurrent executions writing
+	 * the same file each replace it whole.
+	 */
+	private static void store(OCPUResponse resp,
+							  String outputFile) throws IOException {
+
+		Path target = Paths.get(outputFile).toAbsolutePath();
+		Path partial = Files.createTempFile(target.getParent(),
+							target.getFileName().toString(), ".part");
+		boolean moved = false;
+
+		ReadableByteChannel body = Channels.newChannel(resp.body());
+		try {
+			FileChannel file = FileChannel.open(partial,
+									StandardOpenOption.WRITE);
+			try {
+				long position = 0L;
+				long count;
+				while((count = file.transferFrom(body, position,
+												 TRANSFER_CHUNK)) > 0) {
+					position += count;
+				}
+			} finally {
+				file.close();
+			}
+
+			try {
+				Files.move(partial, target,
+						   StandardCopyOption.ATOMIC_MOVE,
+						   StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException amex) {
+				Files.move(partial, target,
+						   StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+		} finally {
+			body.close();
+			if(!moved)
+				Files.deleteIfExists(partial);
+		}
+	}
+
+	private static void close(OCPUResponse resp) {
+		if(resp != null) {
+			try {
+				resp.close();
+			} catch(IOException iex) {}
+		}
+	}
+
 	private static Gson gson = new Gson();
+    private static final long TRANSFER_CHUNK = 1L << 20;
     private static final String METHOD_POST = "POST";
     private static final String METHOD_GET = "GET";
 	private static final String JSON = "json";
+	private static final String NDJSON = "ndjson";
     private static final String JSON_REQ_TYPE = "application/json";
     private static final String ACCEPT_REQ_TYPE =
 									"application/json,text/plain";
@@ -300,17 +683,21 @@ public abstract class BaseTask implements OCPUTask {
 
 	public static final String OCPU_SESSION_DATA(String session,
 												 String objectName) {
+		return OCPU_SESSION_DATA(session, objectName, JSON);
+	}
+
+	public static final String OCPU_SESSION_DATA(String session,
+												 String objectName,
+												 String format) {
 
 		StringBuffer sb = new StringBuffer(OCPU_SESSION_BASE)
 							  .append(session)
 							  .append(OCPU_WORKSPACE)
 							  .append(objectName)
-							  .append("/json");
+							  .append(SLASH)
+							  .append(format);
 
 	    return sb.toString();
 	}
 
-	private static final String OCPU_DEFAULT_ENDPOINT =
-							"http://localhost:8004/ocpu";
-
 }
@@ -20,17 +20,17 @@ import io.onetapbeyond.opencpu.r.executor.*;
 
 public class CRANTask extends BaseTask {
 
-	CRANTask() {}
-
 	public CRANTask(String user, String pkg,
 			  		String function, boolean script,
 			  		String input, String output) {
-		this.user = null; // unused
-		this.pkg = (pkg != null) ? pkg  : UNDEFINED;	
-		this.function = (function != null) ? function  : UNDEFINED;	
-		this.script = script;
-		this.input = input;
-		this.output = output;
-		this.endpoint = super.endpoint(CRAN_CALL_BASE);
+		this(user, pkg, function, script, input, output,
+			 TaskOptions.DEFAULT);
+	}
+
+	public CRANTask(String user, String pkg,
+			  		String function, boolean script,
+			  		String input, String output, TaskOptions options) {
+		super(CRAN_CALL_BASE, null /* unused */,
+			  pkg, function, script, input, output, options);
 	}
 }
@@ -20,23 +20,28 @@ import io.onetapbeyond.opencpu.r.executor.*;
 
 public class GistTask extends BaseTask {
 
-	GistTask() {}
-
 	public GistTask(String user, String pkg,
 				    String function, boolean script,
 				    String input, String output) {
-		this.user = (user != null) ? user : UNDEFINED;	
-		this.pkg = (pkg != null) ? pkg  : UNDEFINED;	
-		this.function = (function != null) ? function  : UNDEFINED;	
-		this.script = script;
-		this.input = input;
-		this.output = output;
-
-		StringBuffer sb = new StringBuffer(GIST_CALL_BASE)
+		this(user, pkg, function, script, input, output,
+			 TaskOptions.DEFAULT);
+	}
+
+	public GistTask(String user, String pkg,
+				    String function, boolean script,
+				    String input, String output, TaskOptions options) {
+		super(GIST_CALL_BASE, (user != null) ? user : UNDEFINED,
+			  pkg, function, script, input, output, options);
+	}
+
+	protected String endpoint(String base) {
+
+		StringBuffer sb = new StringBuffer(base)
 							  .append(user).append(SLASH) 
 							  .append(pkg).append(SLASH)
 							  .append(function);
 
-	    this.endpoint = sb.toString();
+	    return sb.toString();
 	}
+
 }
@@ -20,18 +20,18 @@ import io.onetapbeyond.opencpu.r.executor.*;
 
 public class GitHubTask extends BaseTask {
 
-	GitHubTask() {}
-
 	public GitHubTask(String user, String pkg,
 					  String function, boolean script,
 					  String input, String output) {
-		this.user = (user != null) ? user : UNDEFINED;	
-		this.pkg = (pkg != null) ? pkg  : UNDEFINED;	
-		this.function = (function != null) ? function  : UNDEFINED;	
-		this.script = script;
-		this.input = input;
-		this.output = output;
-		this.endpoint = super.endpoint(GITHUB_CALL_BASE);
+		this(user, pkg, function, script, input, output,
+			 TaskOptions.DEFAULT);
+	}
+
+	public GitHubTask(String user, String pkg,
+					  String function, boolean script,
+					  String input, String output, TaskOptions options) {
+		super(GITHUB_CALL_BASE, (user != null) ? user : UNDEFINED,
+			  pkg, function, script, input, output, options);
 	}
 
 }
@@ -20,18 +20,18 @@ import io.onetapbeyond.opencpu.r.executor.*;
 
 public class LibraryTask extends BaseTask {
 
-	LibraryTask() {}
-
 	public LibraryTask(String user, String pkg,
 					  String function, boolean script,
 					  String input, String output) {
-		this.user = user;	
-		this.pkg = (pkg != null) ? pkg  : UNDEFINED;	
-		this.function = (function != null) ? function  : UNDEFINED;	
-		this.script = script;
-		this.input = input;
-		this.output = output;
-		this.endpoint = super.endpoint(LIBRARY_CALL_BASE);
+		this(user, pkg, function, script, input, output,
+			 TaskOptions.DEFAULT);
+	}
+
+	public LibraryTask(String user, String pkg,
+					  String function, boolean script,
+					  String input, String output, TaskOptions options) {
+		super(LIBRARY_CALL_BASE, user,
+			  pkg, function, script, input, output, options);
 	}
 
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.tasks;
+
+import java.io.*;
+
+/*
+ * LimitedInputStream fails once more than the maximum
+ * number of bytes have been read from the response body.
+ */
+class LimitedInputStream extends FilterInputStream {
+
+	private final long maxSize;
+	private long count;
+
+	LimitedInputStream(InputStream in, long maxSize) {
+		super(in);
+		this.maxSize = maxSize;
+	}
+
+	public int read() throws IOException {
+		int b = super.read();
+		if(b >= 0)
+			count(1);
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if(n > 0)
+			count(n);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	private void count(long n) throws IOException {
+		count += n;
+		if(count > maxSize)
+			throw new IOException("Response exceeds maximum size of " +
+								  maxSize + " bytes.");
+	}
+
+}
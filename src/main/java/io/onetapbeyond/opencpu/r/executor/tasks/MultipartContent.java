@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.tasks;
+
+import io.onetapbeyond.opencpu.r.executor.OCPURequest;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import com.google.gson.*;
+
+/*
+ * MultipartContent streams task input as multipart/form-data. JSON
+ * input arguments and session keys are sent as form fields, file
+ * arguments as file uploads transferred straight from the file channel so file data
+ * never passes through the Java heap in full.
+ */
+class MultipartContent implements OCPURequest.Content {
+
+	private final String boundary = "ocpu-" + UUID.randomUUID();
+	private final List<Object> parts = new ArrayList<Object>();
+
+	MultipartContent(String input,
+					 Map<String, String> files,
+					 Map<String, String> sessions) throws IOException {
+
+		if(input != null) {
+			JsonObject args = new JsonParser().parse(input).getAsJsonObject();
+			for(Map.Entry<String, JsonElement> arg : args.entrySet()) {
+				parts.add(ascii("--" + boundary + CRLF +
+					"Content-Disposition: form-data; name=\"" +
+					arg.getKey() + "\"" + CRLF + CRLF));
+				parts.add(gson.toJson(arg.getValue()).getBytes("UTF-8"));
+				parts.add(ascii(CRLF));
+			}
+		}
+
+		/*
+		 * OpenCPU resolves a session key argument to the
+		 * R object held in that session.
+		 */
+		for(Map.Entry<String, String> session : sessions.entrySet()) {
+			parts.add(ascii("--" + boundary + CRLF +
+				"Content-Disposition: form-data; name=\"" +
+				session.getKey() + "\"" + CRLF + CRLF +
+				session.getValue() + CRLF));
+		}
+
+		for(Map.Entry<String, String> file : files.entrySet()) {
+			Path path = Paths.get(file.getValue());
+			parts.add(ascii("--" + boundary + CRLF +
+				"Content-Disposition: form-data; name=\"" +
+				file.getKey() + "\"; filename=\"" +
+				path.getFileName() + "\"" + CRLF +
+				"Content-Type: " + mediaType(path) + CRLF + CRLF));
+			parts.add(path);
+			parts.add(ascii(CRLF));
+		}
+
+		parts.add(ascii("--" + boundary + "--" + CRLF));
+	}
+
+	String contentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	public long length() throws IOException {
+
+		long length = 0L;
+
+		for(Object part : parts) {
+			if(part instanceof Path)
+				length += Files.size((Path) part);
+			else
+				length += ((byte[]) part).length;
+		}
+		return length;
+	}
+
+	public void writeTo(WritableByteChannel target) throws IOException {
+
+		for(Object part : parts) {
+
+			if(part instanceof Path) {
+
+				FileChannel file = FileChannel.open((Path) part,
+										StandardOpenOption.READ);
+				try {
+					long size = file.size();
+					long position = 0L;
+					while(position < size) {
+						position += file.transferTo(position,
+									size - position, target);
+					}
+				} finally {
+					file.close();
+				}
+
+			} else {
+
+				ByteBuffer buf = ByteBuffer.wrap((byte[]) part);
+				while(buf.hasRemaining())
+					target.write(buf);
+			}
+		}
+	}
+
+	private static String mediaType(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+		if(name.endsWith(".csv"))
+			return "text/csv";
+		if(name.endsWith(".json"))
+			return "application/json";
+		return "application/octet-stream";
+	}
+
+	private static byte[] ascii(String text) throws IOException {
+		return text.getBytes("US-ASCII");
+	}
+
+	private static Gson gson = new Gson();
+	private static final String CRLF = "\r\n";
+
+}
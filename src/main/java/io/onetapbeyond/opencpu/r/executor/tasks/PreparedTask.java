@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.tasks;
+
+import io.onetapbeyond.opencpu.r.executor.*;
+import java.net.URL;
+
+/*
+ * PreparedTask binds input data to a validated task whose
+ * R call was resolved once on the OpenCPU server endpoint.
+ */
+public class PreparedTask extends BaseTask {
+
+	private final String serverEndpoint;
+	private final URL apiCall;
+
+	public PreparedTask(BaseTask prototype, String input,
+						String serverEndpoint, URL apiCall) {
+		super(prototype, input);
+		this.serverEndpoint = serverEndpoint;
+		this.apiCall = apiCall;
+	}
+
+	/*
+	 * Execute the R task, reusing the resolved R call
+	 * when targeting the prepared server endpoint.
+	 */
+	public OCPUResult execute(String serverEndpoint,
+							  OCPUTransport transport) {
+
+		if(!this.serverEndpoint.equals(serverEndpoint))
+			return super.execute(serverEndpoint, transport);
+
+		return execute(serverEndpoint, apiCall, transport,
+					   System.currentTimeMillis());
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.tasks;
+
+import io.onetapbeyond.opencpu.r.executor.OCPURetention;
+import java.util.*;
+
+/*
+ * TaskOptions holds optional settings of a task beyond its R call
+ * and input data. Instances are immutable, each with* method
+ * returns a copy carrying the new setting.
+ */
+public final class TaskOptions implements java.io.Serializable {
+
+	public static final TaskOptions DEFAULT = new TaskOptions();
+
+	private String outputFile;
+	private long maxResponseSize;
+	private OCPURetention retention = OCPURetention.FULL;
+	private LinkedHashMap<String, String> files;
+	private LinkedHashMap<String, String> datasets;
+	private LinkedHashMap<String, String> sessions;
+
+	private TaskOptions() {}
+
+	private TaskOptions copy() {
+		TaskOptions options = new TaskOptions();
+		options.outputFile = outputFile;
+		options.maxResponseSize = maxResponseSize;
+		options.retention = retention;
+		options.files = files;
+		options.datasets = datasets;
+		options.sessions = sessions;
+		return options;
+	}
+
+	/*
+	 * File receiving the R function return value, or the named
+	 * R script object, streamed from the response. Null when
+	 * output is captured in memory.
+	 */
+	public String outputFile() {
+		return outputFile;
+	}
+
+	public TaskOptions withOutputFile(String outputFile) {
+		TaskOptions options = copy();
+		options.outputFile = outputFile;
+		return options;
+	}
+
+	/*
+	 * Maximum size in bytes of a response body read into memory,
+	 * larger responses fail the task. Zero when unlimited.
+	 */
+	public long maxResponseSize() {
+		return maxResponseSize;
+	}
+
+	public TaskOptions withMaxResponseSize(long maxResponseSize) {
+		TaskOptions options = copy();
+		options.maxResponseSize = maxResponseSize;
+		return options;
+	}
+
+	/*
+	 * Data retained by the result of an execution.
+	 */
+	public OCPURetention retention() {
+		return retention;
+	}
+
+	public TaskOptions withRetention(OCPURetention retention) {
+		TaskOptions options = copy();
+		options.retention = (retention != null) ?
+			retention : OCPURetention.FULL;
+		return options;
+	}
+
+	/*
+	 * Files uploaded as R function arguments, by argument name.
+	 */
+	public Map<String, String> files() {
+		return view(files);
+	}
+
+	public TaskOptions withFile(String name, String file) {
+		TaskOptions options = copy();
+		options.files = put(files, name, file);
+		return options;
+	}
+
+	/*
+	 * Pinned datasets passed as R function arguments,
+	 * dataset name by argument name.
+	 */
+	public Map<String, String> datasets() {
+		return view(datasets);
+	}
+
+	public TaskOptions withDataset(String name, String dataset) {
+		TaskOptions options = copy();
+		options.datasets = put(datasets, name, dataset);
+		return options;
+	}
+
+	/*
+	 * OpenCPU session keys passed as R function arguments, session
+	 * key by argument name. Set when pinned datasets are resolved.
+	 */
+	public Map<String, String> sessions() {
+		return view(sessions);
+	}
+
+	public TaskOptions withSessions(Map<String, String> sessions) {
+		TaskOptions options = copy();
+		options.sessions = new LinkedHashMap<String, String>(sessions);
+		return options;
+	}
+
+	private static Map<String, String> view(Map<String, String> map) {
+		if(map == null)
+			return Collections.emptyMap();
+		return Collections.unmodifiableMap(map);
+	}
+
+	private static LinkedHashMap<String, String> put(
+			Map<String, String> map, String key, String value) {
+		LinkedHashMap<String, String> copy = (map != null) ?
+			new LinkedHashMap<String, String>(map) :
+			new LinkedHashMap<String, String>();
+		copy.put(key, value);
+		return copy;
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.transports;
+
+import io.onetapbeyond.opencpu.r.executor.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+
+/*
+ * URLConnectionTransport makes OpenCPU requests using
+ * HttpURLConnection, the transport available on every Java version.
+ */
+public class URLConnectionTransport implements OCPUTransport {
+
+	public OCPUResponse send(OCPURequest request) throws IOException {
+
+        final HttpURLConnection conn =
+        	(HttpURLConnection) request.url().openConnection();
+
+		/*
+		 * HttpURLConnection ignores interrupts, an exchange
+		 * is aborted by disconnecting.
+		 */
+		request.onAbort(new Closeable() {
+			public void close() {
+				conn.disconnect();
+			}
+		});
+
+        OCPUResponse resp = null;
+
+        try {
+        	resp = new Response(conn, request, exchange(conn, request));
+        	return resp;
+        } finally {
+        	if(resp == null)
+        		request.onAbort(null);
+        }
+	}
+
+	private static int exchange(HttpURLConnection conn,
+								OCPURequest request) throws IOException {
+
+        conn.setRequestProperty("Content-Type", request.contentType());
+        conn.setRequestProperty("Accept", request.accept());
+        conn.setRequestMethod(request.method());
+
+        conn.setDoInput(true);
+
+        byte[] reqData = request.body();
+        OCPURequest.Content content = request.content();
+
+        if(content != null) {
+
+	        /*
+	         * Fixed length streaming stops HttpURLConnection
+	         * buffering the whole body in memory.
+	         */
+	        conn.setDoOutput(true);
+	        conn.setFixedLengthStreamingMode(content.length());
+	        OutputStream os = conn.getOutputStream();
+	        content.writeTo(Channels.newChannel(os));
+	        os.close();
+
+        } else if(reqData != null) {
+
+	        conn.setDoOutput(true);
+	        OutputStream os = conn.getOutputStream();
+	        os.write(reqData);
+        	os.close();	
+        }
+
+		return conn.getResponseCode();
+	}
+
+	/*
+	 * Response on an HttpURLConnection. Closing the response
+	 * leaves the connection available for keep-alive reuse.
+	 */
+	private static class Response implements OCPUResponse {
+
+		private final HttpURLConnection conn;
+		private final OCPURequest request;
+		private final int status;
+		private InputStream body;
+
+		private Response(HttpURLConnection conn,
+						 OCPURequest request,
+						 int status) {
+			this.conn = conn;
+			this.request = request;
+			this.status = status;
+		}
+
+		public int status() {
+			return status;
+		}
+
+		public String message() {
+			try {
+				return conn.getResponseMessage();
+			} catch(IOException iex) {
+				return null;
+			}
+		}
+
+		public String header(String name) {
+			return conn.getHeaderField(name);
+		}
+
+		public InputStream body() throws IOException {
+			if(body == null) {
+				body = (status < HttpURLConnection.HTTP_BAD_REQUEST) ?
+							conn.getInputStream() : conn.getErrorStream();
+				if(body == null)
+					body = new ByteArrayInputStream(new byte[0]);
+			}
+			return body;
+		}
+
+		public void close() throws IOException {
+			/*
+			 * The connection may go back to the keep-alive cache,
+			 * it must no longer be disconnected by an abort.
+			 */
+			request.onAbort(null);
+			if(body != null)
+				body.close();
+		}
+	}
+
+}
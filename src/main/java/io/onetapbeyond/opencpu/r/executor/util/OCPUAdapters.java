@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.util;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
+
+/*
+ * Gson TypeAdapter conversions used to encode typed task inputs and
+ * decode typed task outputs. Gson caches the adapter of each type,
+ * so the fields of a class are looked up once, on first use. Field
+ * values are still read and set reflectively on every conversion,
+ * which streams directly between the object and JSON text with no
+ * intermediate Map or JsonElement tree.
+ */
+public final class OCPUAdapters {
+
+	private static Gson gson = new Gson();
+
+	private OCPUAdapters() {}
+
+	/*
+	 * Returns the adapter for the type.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> TypeAdapter<T> adapter(Type type) {
+		return (TypeAdapter<T>) gson.getAdapter(TypeToken.get(type));
+	}
+
+	/*
+	 * Write the value as JSON using the adapter of its runtime class.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void write(JsonWriter writer, Object value) throws IOException {
+		if(value == null) {
+			writer.nullValue();
+			return;
+		}
+		TypeAdapter<Object> adapter = adapter(value.getClass());
+		adapter.write(writer, value);
+	}
+
+	/*
+	 * Encode the value as JSON text.
+	 */
+	public static String toJson(Object value) throws IOException {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		writer.setLenient(true);
+		write(writer, value);
+		return out.toString();
+	}
+
+	/*
+	 * Decode JSON text as an instance of the type.
+	 */
+	public static <T> T fromJson(String json, Type type) throws IOException {
+		return fromJson(new StringReader(json), type);
+	}
+
+	/*
+	 * Decode JSON text streamed from the reader as an instance
+	 * of the type.
+	 */
+	public static <T> T fromJson(Reader json, Type type) throws IOException {
+		JsonReader reader = new JsonReader(json);
+		reader.setLenient(true);
+		TypeAdapter<T> adapter = adapter(type);
+		return adapter.read(reader);
+	}
+
+}
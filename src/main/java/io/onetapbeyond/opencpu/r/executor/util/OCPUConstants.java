@@ -35,4 +35,8 @@ public interface OCPUConstants {
 	public static final String JSON = "/json";
 	public static final String UNDEFINED = "UNDEFINED";
 
+	// OpenCPU server endpoint used when none is provided.
+	public static final String OCPU_DEFAULT_ENDPOINT =
+							"http://localhost:8004/ocpu";
+
 }
\ No newline at end of file
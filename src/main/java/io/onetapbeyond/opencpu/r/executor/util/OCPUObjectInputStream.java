@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.util;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Object stream deserializing only classes of this library and the
+ * JDK types held by its tasks and results, used to read serialized
+ * tasks and results from streams and files outside the JVM. Any
+ * other class fails the stream with an InvalidClassException.
+ */
+public class OCPUObjectInputStream extends ObjectInputStream {
+
+	public OCPUObjectInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	protected Class<?> resolveClass(ObjectStreamClass desc)
+						throws IOException, ClassNotFoundException {
+		String name = desc.getName();
+		while(name.startsWith("["))
+			name = name.substring(1);
+		if(name.startsWith("L") && name.endsWith(";"))
+			name = name.substring(1, name.length() - 1);
+		if(name.length() > 1 && !name.startsWith(LIBRARY) &&
+			!ALLOWED.contains(name))
+			throw new InvalidClassException(desc.getName(),
+									"Class not permitted in stream.");
+		return super.resolveClass(desc);
+	}
+
+	private static final String LIBRARY = "io.onetapbeyond.opencpu.r.executor.";
+	private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList(
+		"java.lang.Object", "java.lang.String", "java.lang.Enum",
+		"java.lang.Number", "java.lang.Boolean", "java.lang.Integer",
+		"java.lang.Long", "java.lang.Double", "java.util.HashMap",
+		"java.util.LinkedHashMap", "java.net.URL"));
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Adapters between the {@link OCPUFlow} interfaces and
+ * {@link java.util.concurrent.Flow}, so an {@link OCPUProcessor}
+ * plugs directly into Flow based pipelines:
+ * <pre>
+ * {@code
+ * Flow.Processor<OCPUTask, OCPUResult> oProcessor =
+ *     OCPUFlows.processor(OCPUProcessor.tasks(endpoint, executor, 16, true));
+ * taskPublisher.subscribe(oProcessor);
+ * oProcessor.subscribe(resultSubscriber);
+ * }
+ * </pre>
+ * <p>
+ * Each adapter delegates every signal unchanged, demand and
+ * cancellation included. Compiled into META-INF/versions/11 of the
+ * multi-release jar, available on Java 11 or later.
+ */
+public final class OCPUFlows {
+
+	private OCPUFlows() {}
+
+	/**
+	 * Adapt the processor to a {@link Flow.Processor}.
+	 * @param processor the processor, for example an {@link OCPUProcessor}
+	 * @param <T> the subscribed item type
+	 * @param <R> the published item type
+	 * @return the {@link Flow.Processor} delegating to the processor
+	 */
+	public static <T,R> Flow.Processor<T,R> processor(
+									OCPUFlow.Processor<T,R> processor) {
+		return new FlowProcessor<T,R>(processor);
+	}
+
+	/**
+	 * Adapt the publisher to a {@link Flow.Publisher}.
+	 * @param publisher the publisher
+	 * @param <T> the published item type
+	 * @return the {@link Flow.Publisher} delegating to the publisher
+	 */
+	public static <T> Flow.Publisher<T> publisher(
+									final OCPUFlow.Publisher<T> publisher) {
+		return new Flow.Publisher<T>() {
+			public void subscribe(Flow.Subscriber<? super T> subscriber) {
+				publisher.subscribe(new Subscriber<T>(subscriber));
+			}
+		};
+	}
+
+	/**
+	 * Adapt the subscriber to a {@link Flow.Subscriber}.
+	 * @param subscriber the subscriber
+	 * @param <T> the subscribed item type
+	 * @return the {@link Flow.Subscriber} delegating to the subscriber
+	 */
+	public static <T> Flow.Subscriber<T> subscriber(
+									OCPUFlow.Subscriber<T> subscriber) {
+		return new FlowSubscriber<T>(subscriber);
+	}
+
+	/*
+	 * Flow.Subscriber delegating to an OCPUFlow.Subscriber.
+	 */
+	private static class FlowSubscriber<T> implements Flow.Subscriber<T> {
+
+		private final OCPUFlow.Subscriber<T> subscriber;
+
+		private FlowSubscriber(OCPUFlow.Subscriber<T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void onSubscribe(final Flow.Subscription subscription) {
+			subscriber.onSubscribe(new OCPUFlow.Subscription() {
+				public void request(long n) {
+					subscription.request(n);
+				}
+				public void cancel() {
+					subscription.cancel();
+				}
+			});
+		}
+
+		public void onNext(T item) {
+			subscriber.onNext(item);
+		}
+
+		public void onError(Throwable throwable) {
+			subscriber.onError(throwable);
+		}
+
+		public void onComplete() {
+			subscriber.onComplete();
+		}
+	}
+
+	/*
+	 * Flow.Processor delegating to an OCPUFlow.Processor.
+	 */
+	private static final class FlowProcessor<T,R> extends FlowSubscriber<T>
+										implements Flow.Processor<T,R> {
+
+		private final OCPUFlow.Processor<T,R> processor;
+
+		private FlowProcessor(OCPUFlow.Processor<T,R> processor) {
+			super(processor);
+			this.processor = processor;
+		}
+
+		public void subscribe(Flow.Subscriber<? super R> subscriber) {
+			processor.subscribe(new Subscriber<R>(subscriber));
+		}
+	}
+
+	/*
+	 * OCPUFlow.Subscriber delegating to a Flow.Subscriber.
+	 */
+	private static final class Subscriber<T> implements OCPUFlow.Subscriber<T> {
+
+		private final Flow.Subscriber<? super T> subscriber;
+
+		private Subscriber(Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void onSubscribe(final OCPUFlow.Subscription subscription) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+					subscription.request(n);
+				}
+				public void cancel() {
+					subscription.cancel();
+				}
+			});
+		}
+
+		public void onNext(T item) {
+			subscriber.onNext(item);
+		}
+
+		public void onError(Throwable throwable) {
+			subscriber.onError(throwable);
+		}
+
+		public void onComplete() {
+			subscriber.onComplete();
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.transports;
+
+import io.onetapbeyond.opencpu.r.executor.*;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * HttpClientTransport makes OpenCPU requests using the Java 11
+ * HttpClient, multiplexing concurrent requests as streams over a
+ * small number of HTTP/2 connections. Servers that only speak
+ * HTTP/1.1 are handled by the same client using a connection pool.
+ *
+ * Compiled into META-INF/versions/11 of the multi-release jar and
+ * loaded reflectively by OCPUTransports.http2().
+ */
+public class HttpClientTransport implements OCPUTransport {
+
+	private final HttpClient client;
+
+	public HttpClientTransport() {
+		this(HttpClient.newBuilder()
+					   .version(HttpClient.Version.HTTP_2)
+					   .followRedirects(HttpClient.Redirect.NORMAL)
+					   .connectTimeout(Duration.ofSeconds(30))
+					   .build());
+	}
+
+	public HttpClientTransport(HttpClient client) {
+		this.client = client;
+	}
+
+	public OCPUResponse send(OCPURequest request) throws IOException {
+
+		HttpRequest.Builder builder;
+
+		try {
+			builder = HttpRequest.newBuilder(request.url().toURI());
+		} catch(URISyntaxException uex) {
+			throw new IOException(request.url() + " invalid.", uex);
+		}
+
+		byte[] reqData = request.body();
+		OCPURequest.Content content = request.content();
+		HttpRequest.BodyPublisher publisher;
+
+		if(content != null) {
+			publisher = HttpRequest.BodyPublishers.fromPublisher(
+				new ContentPublisher(content), content.length());
+		} else if(reqData != null) {
+			publisher = HttpRequest.BodyPublishers.ofByteArray(reqData);
+		} else {
+			publisher = HttpRequest.BodyPublishers.noBody();
+		}
+
+		builder.header("Content-Type", request.contentType())
+			   .header("Accept", request.accept())
+			   .method(request.method(), publisher);
+
+		try {
+			return new Response(client.send(builder.build(),
+				HttpResponse.BodyHandlers.ofInputStream()));
+		} catch(InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			InterruptedIOException ioex =
+				new InterruptedIOException(request + " interrupted.");
+			ioex.initCause(iex);
+			throw ioex;
+		}
+	}
+
+	/*
+	 * Publishes a streamed request body to the HttpClient. The body
+	 * is written by a dedicated thread that blocks while the client
+	 * signals no demand, so at most one chunk is held in memory.
+	 */
+	private static class ContentPublisher
+						implements Flow.Publisher<ByteBuffer> {
+
+		private final OCPURequest.Content content;
+
+		private ContentPublisher(OCPURequest.Content content) {
+			this.content = content;
+		}
+
+		public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+
+			final Semaphore demand = new Semaphore(0);
+			final AtomicBoolean unbounded = new AtomicBoolean();
+			final AtomicBoolean cancelled = new AtomicBoolean();
+
+			subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) {
+					if(n >= Integer.MAX_VALUE)
+						unbounded.set(true);
+					demand.release((int) Math.min(n, Integer.MAX_VALUE));
+				}
+				public void cancel() {
+					cancelled.set(true);
+					demand.release();
+				}
+			});
+
+			final WritableByteChannel target = new WritableByteChannel() {
+				public int write(ByteBuffer src) throws IOException {
+					int n = src.remaining();
+					ByteBuffer chunk = ByteBuffer.allocate(n);
+					chunk.put(src).flip();
+					if(!unbounded.get())
+						demand.acquireUninterruptibly();
+					if(cancelled.get())
+						throw new IOException("Request body cancelled.");
+					subscriber.onNext(chunk);
+					return n;
+				}
+				public boolean isOpen() {
+					return !cancelled.get();
+				}
+				public void close() {}
+			};
+
+			writers.execute(new Runnable() {
+				public void run() {
+					try {
+						content.writeTo(target);
+						subscriber.onComplete();
+					} catch(Throwable t) {
+						if(!cancelled.get())
+							subscriber.onError(t);
+					}
+				}
+			});
+		}
+	}
+
+	private static final ExecutorService writers =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ocpu-request-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/*
+	 * Response on the HttpClient, the body is streamed
+	 * from the connection as it is read.
+	 */
+	private static class Response implements OCPUResponse {
+
+		private final HttpResponse<InputStream> response;
+
+		private Response(HttpResponse<InputStream> response) {
+			this.response = response;
+		}
+
+		public int status() {
+			return response.statusCode();
+		}
+
+		public String message() {
+			return null; // HTTP/2 carries no reason phrase.
+		}
+
+		public String header(String name) {
+			return response.headers().firstValue(name).orElse(null);
+		}
+
+		public InputStream body() {
+			return response.body();
+		}
+
+		public void close() throws IOException {
+			response.body().close();
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor.util;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/*
+ * VirtualThreadExecutor starts a new virtual thread for each task,
+ * so blocking OCPUTask executions park their virtual thread rather
+ * than occupying a platform thread while waiting on the server.
+ *
+ * Compiled into META-INF/versions/21 of the multi-release jar and
+ * loaded reflectively by OCPUExecutors.newVirtualThreadExecutor().
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+	private final ExecutorService executor;
+
+	public VirtualThreadExecutor() {
+		this.executor = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("ocpu-virtual-", 0).factory());
+	}
+
+	public void execute(Runnable command) {
+		executor.execute(command);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	public boolean isTerminated() {
+		return executor.isTerminated();
+	}
+
+	public boolean awaitTermination(long timeout,
+									TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class OCPUConcurrencyTests {
+
+    private static final int THREADS = 32;
+    private static final int EXECUTIONS = 2000;
+
+    private static OCPUTestServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        server = new OCPUTestServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+    }
+
+    @Test
+    public void testSharedFunctionTaskConcurrentExecution() throws Exception {
+
+        Map data = new HashMap();
+        data.put("n", 10);
+        data.put("mean", Arrays.asList(1, 2, 3));
+        final OCPUTask oTask = OCPU.R()
+                                   .pkg("stats")
+                                   .function("rnorm")
+                                   .input(data)
+                                   .library();
+        final Map expected = oTask.execute(server.endpoint()).output();
+        assertNotNull(expected.get("rnorm"));
+
+        List<OCPUResult> results = executeShared(oTask);
+        for(OCPUResult oResult : results) {
+            assertTrue(oResult.success());
+            assertEquals(data.size(), oResult.input().size());
+            assertEquals(expected, oResult.output());
+        }
+    }
+
+    @Test
+    public void testSharedScriptTaskConcurrentExecution() throws Exception {
+
+        final OCPUTask oTask = OCPU.R()
+                                   .pkg("MASS")
+                                   .script("ch01.R", "dd")
+                                   .library();
+
+        List<OCPUResult> results = executeShared(oTask);
+        for(OCPUResult oResult : results) {
+            assertTrue(oResult.success());
+            List dd = (List) oResult.output().get("dd");
+            assertTrue(((String) dd.get(0)).endsWith("/R/dd/json"));
+        }
+    }
+
+    @Test
+    public void testSharedTemplateConcurrentExecution() throws Exception {
+
+        final OCPUTemplate oTemplate =
+            OCPUTemplate.prepare(OCPU.R()
+                                     .pkg("stats")
+                                     .function("rnorm")
+                                     .library(), server.endpoint());
+        Map data = new HashMap();
+        data.put("n", 3);
+        OCPUTask oTask = oTemplate.bind(data);
+
+        List<OCPUResult> results = executeShared(oTask);
+        for(OCPUResult oResult : results) {
+            assertTrue(oResult.success());
+            assertEquals(oResult.input(), oResult.output().get("rnorm"));
+        }
+    }
+
+    @Test
+    public void testOrderedProcessorHonorsDemand() throws Exception {
+
+        final int items = 500;
+        OCPUTemplate oTemplate =
+            OCPUTemplate.prepare(OCPU.R()
+                                     .pkg("stats")
+                                     .function("rnorm")
+                                     .library(), server.endpoint());
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final List<OCPUResult> results =
+                Collections.synchronizedList(new ArrayList<OCPUResult>());
+        final CountDownLatch complete = new CountDownLatch(1);
+
+        try {
+            OCPUProcessor<Map> oProcessor =
+                OCPUProcessor.inputs(oTemplate, pool, 8, true);
+            oProcessor.subscribe(new OCPUFlow.Subscriber<OCPUResult>() {
+                private OCPUFlow.Subscription subscription;
+                public void onSubscribe(OCPUFlow.Subscription s) {
+                    subscription = s;
+                    s.request(1);
+                }
+                public void onNext(OCPUResult oResult) {
+                    results.add(oResult);
+                    subscription.request(1);
+                }
+                public void onError(Throwable t) {
+                    complete.countDown();
+                }
+                public void onComplete() {
+                    complete.countDown();
+                }
+            });
+
+            final List<Map> inputs = new ArrayList<Map>();
+            for(int i = 0; i < items; i++) {
+                Map data = new HashMap();
+                data.put("n", i);
+                inputs.add(data);
+            }
+            publish(inputs, oProcessor);
+
+            assertTrue(complete.await(60, TimeUnit.SECONDS));
+            assertEquals(items, results.size());
+            for(int i = 0; i < items; i++) {
+                OCPUResult oResult = results.get(i);
+                assertTrue(oResult.success());
+                assertEquals((double) i, oResult.input().get("n"));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOrderedProcessorPublishesThrowingTaskAsFailure()
+                                                    throws Exception {
+
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]");
+        final OCPUTask rnorm = OCPU.R().pkg("stats").function("rnorm").library();
+        OCPUTask good = new StubTask() {
+            public OCPUResult execute(String endpoint) {
+                return rnorm.execute(endpoint, memory);
+            }
+        };
+        OCPUTask broken = new StubTask() {
+            public OCPUResult execute(String endpoint) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<OCPUResult> results =
+                Collections.synchronizedList(new ArrayList<OCPUResult>());
+        final CountDownLatch complete = new CountDownLatch(1);
+
+        try {
+            OCPUProcessor<OCPUTask> oProcessor =
+                OCPUProcessor.tasks("http://ocpu/ocpu", pool, 2, true);
+            oProcessor.subscribe(new OCPUFlow.Subscriber<OCPUResult>() {
+                public void onSubscribe(OCPUFlow.Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+                public void onNext(OCPUResult oResult) {
+                    results.add(oResult);
+                }
+                public void onError(Throwable t) {
+                    complete.countDown();
+                }
+                public void onComplete() {
+                    complete.countDown();
+                }
+            });
+            publish(Arrays.asList(good, broken, good), oProcessor);
+
+            assertTrue(complete.await(10, TimeUnit.SECONDS));
+            assertEquals(3, results.size());
+            assertTrue(results.get(0).success());
+            assertFalse(results.get(1).success());
+            assertEquals("broken", results.get(1).cause().getMessage());
+            assertTrue(results.get(2).success());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * Task implemented outside the library, executing on
+     * the endpoint only.
+     */
+    private static abstract class StubTask implements OCPUTask {
+        public OCPUResult execute() {
+            return execute("http://localhost:8004/ocpu");
+        }
+        public OCPUResult execute(String endpoint, OCPUTransport transport) {
+            throw new UnsupportedOperationException();
+        }
+        public OCPURows<Map> rows(String endpoint) {
+            throw new UnsupportedOperationException();
+        }
+        public <T> OCPURows<T> rows(String endpoint, Class<T> type) {
+            throw new UnsupportedOperationException();
+        }
+        public <T> OCPURows<T> rows(String endpoint, java.lang.reflect.Type type,
+                                    OCPUTransport transport) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /*
+     * Publish the items to the subscriber, never ahead of demand.
+     */
+    private static <T> void publish(final List<T> items,
+                                    final OCPUFlow.Subscriber<T> subscriber) {
+
+        subscriber.onSubscribe(new OCPUFlow.Subscription() {
+            private int next;
+            private long demand;
+            private boolean emitting;
+            public synchronized void request(long n) {
+                demand += n;
+                if(emitting)
+                    return;
+                emitting = true;
+                while(demand > 0 && next < items.size()) {
+                    demand--;
+                    subscriber.onNext(items.get(next++));
+                }
+                emitting = false;
+                if(next == items.size()) {
+                    next++;
+                    subscriber.onComplete();
+                }
+            }
+            public void cancel() {}
+        });
+    }
+
+    /*
+     * Execute the one task instance from many threads at once.
+     */
+    private static List<OCPUResult> executeShared(final OCPUTask oTask)
+                                                    throws Exception {
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<OCPUResult>> futures =
+                            new ArrayList<Future<OCPUResult>>();
+
+        try {
+            for(int i = 0; i < EXECUTIONS; i++) {
+                futures.add(pool.submit(new Callable<OCPUResult>() {
+                    public OCPUResult call() throws Exception {
+                        start.await();
+                        return oTask.execute(server.endpoint());
+                    }
+                }));
+            }
+            start.countDown();
+
+            List<OCPUResult> results = new ArrayList<OCPUResult>();
+            for(Future<OCPUResult> future : futures) {
+                results.add(future.get(60, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.util.*;
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+
+public class OCPUEncodingTests {
+
+    private static final String ENDPOINT = "http://ocpu/ocpu";
+    private static final int ROWS = 1000;
+
+    static class Person {
+        String name;
+        int age;
+        List<Double> scores;
+
+        Person() {}
+
+        Person(String name, int age, List<Double> scores) {
+            this.name = name;
+            this.age = age;
+            this.scores = scores;
+        }
+    }
+
+    static class Args {
+        int n = 10;
+        double mean = 2.5;
+    }
+
+    @Test
+    public void testTypedInputEncodedAsNamedArguments() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]");
+
+        OCPUTask oTask = OCPU.R()
+                             .pkg("stats")
+                             .function("rnorm")
+                             .input(new Args())
+                             .input("sd", 0.5)
+                             .library();
+        assertTrue(oTask.execute(ENDPOINT, transport).success());
+
+        String body = new String(transport.requests().get(0).body(), "UTF-8");
+        assertEquals("{\"n\":10,\"mean\":2.5,\"sd\":0.5}", body);
+
+        try {
+            OCPU.R().pkg("stats").function("rnorm").input((Object) "text");
+            fail("Non-object input accepted.");
+        } catch(OCPUException oex) {}
+    }
+
+    @Test
+    public void testTypedOutputBoundFromJson() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/tvscore/R/people/json", 200,
+                   "[{\"name\":\"a\",\"age\":26,\"scores\":[1.5,2]}," +
+                   "{\"name\":\"b\",\"age\":56,\"scores\":[]}]");
+
+        OCPUResult oResult = OCPU.R()
+                                 .pkg("tvscore")
+                                 .function("people")
+                                 .library()
+                                 .execute(ENDPOINT, transport);
+        assertTrue(oResult.success());
+
+        Person[] people = oResult.output("people", Person[].class);
+        assertEquals(2, people.length);
+        assertEquals("a", people[0].name);
+        assertEquals(56, people[1].age);
+        assertEquals(Arrays.asList(1.5, 2.0), people[0].scores);
+
+        List<Person> list = oResult.output("people",
+                                new TypeToken<List<Person>>(){}.getType());
+        assertEquals("b", list.get(1).name);
+        assertNull(oResult.output("missing", Person.class));
+
+        try {
+            oResult.output("people", Integer.class);
+            fail("Output bound to incompatible type.");
+        } catch(OCPUException oex) {}
+    }
+
+    @Test
+    public void testRowsStreamedAsNdjson() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/tvscore/R/people/ndjson", 200,
+                   "{\"name\":\"a\",\"age\":26}\n\n" +
+                   "{\"name\":\"b\",\"age\":56}\n")
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("GET", "/tmp/x0a1b2c3d/R/dd/ndjson", 200,
+                   "{\"age\":1}\n{\"age\":2}\n{\"age\":3}");
+
+        OCPUTask oTask = OCPU.R().pkg("tvscore").function("people").library();
+        OCPURows<Person> rows = oTask.rows(ENDPOINT, Person.class, transport);
+        assertTrue(rows.hasNext());
+        assertEquals("a", rows.next().name);
+        assertEquals(56, rows.next().age);
+        assertFalse(rows.hasNext());
+        assertEquals(2, rows.count());
+        rows.close();
+
+        OCPUTask sTask = OCPU.R().pkg("MASS").script("ch01.R", "dd").library();
+        OCPURows<Map> dd = sTask.rows(ENDPOINT, Map.class, transport);
+        try {
+            assertEquals(1.0, dd.next().get("age"));
+        } finally {
+            dd.close();
+        }
+        assertFalse(dd.hasNext());
+
+        try {
+            OCPU.R().pkg("stats").function("rnorm").library()
+                .rows(ENDPOINT, Map.class, transport);
+            fail("Rows streamed from failed call.");
+        } catch(OCPUException oex) {
+            assertEquals(404, oex.status());
+        }
+    }
+
+    @Test
+    public void testLeanRetentionModes() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200,
+                   "[1.5, 2.5, -2]")
+            .reply("POST", "/library/stats/R/summary/json", 200,
+                   "{\"mean\": 2}");
+
+        Map data = new HashMap();
+        data.put("n", 3);
+        for(OCPURetention retention : OCPURetention.values()) {
+            OCPUResult oResult = OCPU.R().pkg("stats").function("rnorm")
+                                     .input(data).retention(retention)
+                                     .library().execute(ENDPOINT, transport);
+            assertTrue(oResult.success());
+            assertEquals(retention == OCPURetention.FULL,
+                         oResult.input() != null);
+            List rnorm = (List) oResult.output().get("rnorm");
+            assertEquals(1.5, rnorm.get(0));
+            double[] values = oResult.output("rnorm", double[].class);
+            assertEquals(-2.0, values[2], 0.0);
+
+            Map summary = (Map) OCPU.R().pkg("stats").function("summary")
+                                    .retention(retention).library()
+                                    .execute(ENDPOINT, transport)
+                                    .output().get("summary");
+            assertEquals(2.0, summary.get("mean"));
+
+            OCPUResult failed = OCPU.R().pkg("stats").function("median")
+                                    .retention(retention).library()
+                                    .execute(ENDPOINT, transport);
+            assertFalse(failed.success());
+            assertEquals(404, ((OCPUException) failed.cause()).status());
+        }
+    }
+
+    @Test
+    public void testRetentionModesHoldLeanValues() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1.5, 2.5]")
+            .reply("POST", "/library/stats/R/summary/json", 200,
+                   "{\"mean\": 2}");
+
+        Map<OCPURetention, Class<?>> held =
+                        new EnumMap<OCPURetention, Class<?>>(OCPURetention.class);
+        held.put(OCPURetention.OUTPUT, String.class);
+        held.put(OCPURetention.BYTES, byte[].class);
+        held.put(OCPURetention.PRIMITIVE, double[].class);
+
+        Map data = new HashMap();
+        data.put("n", 2);
+        for(OCPURetention retention : OCPURetention.values()) {
+            OCPUResult vector = OCPU.R().pkg("stats").function("rnorm")
+                                    .input(data).retention(retention)
+                                    .library().execute(ENDPOINT, transport);
+            OCPUResult summary = OCPU.R().pkg("stats").function("summary")
+                                     .retention(retention)
+                                     .maxResponseSize(1000).library()
+                                     .execute(ENDPOINT, transport);
+            if(retention == OCPURetention.FULL) {
+                assertNotNull(vector.input());
+                assertEquals(String.class, held(vector)[1].getClass());
+                continue;
+            }
+            assertNull(vector.input());
+            assertNull(summary.input());
+            assertEquals(held.get(retention), held(vector)[0].getClass());
+            assertEquals(retention == OCPURetention.OUTPUT ?
+                             String.class : byte[].class,
+                         held(summary)[0].getClass());
+        }
+    }
+
+    /*
+     * Output values held by a result: the name and JSON value
+     * pairs of a full result, the retained values of a lean one.
+     */
+    private static Object[] held(OCPUResult oResult) throws Exception {
+        java.lang.reflect.Field field;
+        try {
+            field = oResult.getClass().getDeclaredField("values");
+        } catch(NoSuchFieldException nex) {
+            field = oResult.getClass().getDeclaredField("output");
+        }
+        field.setAccessible(true);
+        return (Object[]) field.get(oResult);
+    }
+
+    @Test
+    public void testTypedInputMatchesMapInput() throws Exception {
+
+        List<Person> people = new ArrayList<Person>();
+        for(int i = 0; i < ROWS; i++) {
+            people.add(new Person("p" + i, i % 90,
+                                  Arrays.asList(i * 0.5, i * 1.5)));
+        }
+
+        String typed = ((BaseTask)
+            OCPU.R().pkg("tvscore").function("tv")
+                .input("people", people).library()).signature("");
+
+        List<Map> rows = new ArrayList<Map>();
+        for(Person p : people) {
+            Map row = new LinkedHashMap();
+            row.put("name", p.name);
+            row.put("age", p.age);
+            row.put("scores", p.scores);
+            rows.add(row);
+        }
+        Map data = new HashMap();
+        data.put("people", rows);
+        String mapped = ((BaseTask)
+            OCPU.R().pkg("tvscore").function("tv")
+                .input(data).library()).signature("");
+
+        JsonParser parser = new JsonParser();
+        assertEquals(parser.parse(mapped.substring(mapped.indexOf('\n') + 1)),
+                     parser.parse(typed.substring(typed.indexOf('\n') + 1)));
+    }
+
+}
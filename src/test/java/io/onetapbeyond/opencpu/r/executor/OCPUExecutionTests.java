@@ -0,0 +1,994 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import io.onetapbeyond.opencpu.r.executor.tasks.BaseTask;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class OCPUExecutionTests {
+
+    private static final String ENDPOINT = "http://ocpu/ocpu";
+
+    @Test
+    public void testPinnedDatasetUploadedOncePerEndpoint() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/base/R/identity", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("POST", "/library/tvscore/R/tv/json", 200, "[1]");
+
+        OCPUDatasets datasets = new OCPUDatasets(8);
+        datasets.pin("people", Arrays.asList(26, 56));
+
+        Map data = new HashMap();
+        data.put("age", 30);
+        OCPUTask oTask = OCPU.R()
+                             .pkg("tvscore")
+                             .function("tv")
+                             .input(data)
+                             .dataset("reference", "people")
+                             .library();
+
+        for(int i = 0; i < 3; i++) {
+            assertTrue(datasets.execute(oTask, ENDPOINT, transport).success());
+        }
+        assertTrue(datasets.execute(oTask, ENDPOINT + "2", transport).success());
+        assertEquals(2, datasets.uploads());
+        assertEquals(2, datasets.sessions());
+
+        OCPURequest call = transport.requests().get(1);
+        String body = content(call);
+        assertTrue(body.contains("name=\"reference\"\r\n\r\nx0a1b2c3d\r\n"));
+        assertTrue(body.contains("name=\"age\"\r\n\r\n30\r\n"));
+
+        assertFalse(oTask.execute(ENDPOINT, transport).success());
+    }
+
+    @Test
+    public void testExpiredDatasetSessionUploadedAgain() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/base/R/identity", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("POST", "/library/tvscore/R/tv/json", 400, "Session not found");
+
+        OCPUDatasets datasets = new OCPUDatasets(8);
+        datasets.pin("people", Arrays.asList(26, 56));
+        OCPUTask oTask = OCPU.R()
+                             .pkg("tvscore")
+                             .function("tv")
+                             .dataset("reference", "people")
+                             .library();
+
+        OCPUResult oResult = datasets.execute(oTask, ENDPOINT, transport);
+        assertFalse(oResult.success());
+        assertEquals(400, ((OCPUException) oResult.cause()).status());
+        assertEquals(2, datasets.uploads());
+    }
+
+    @Test
+    public void testSingleFlightCollapsesIdenticalTasks() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d");
+        final OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                try {
+                    release.await();
+                } catch(InterruptedException iex) {
+                    throw new InterruptedIOException();
+                }
+                return memory.send(request);
+            }
+        };
+        final OCPUSingleFlight flight = new OCPUSingleFlight();
+
+        final OCPUTask[] tasks = {
+            task("rnorm"), task("missing"),
+            OCPU.R().pkg("MASS").script("ch01.R", null).library()
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(12);
+        try {
+            List<Future<OCPUResult>> futures = new ArrayList<Future<OCPUResult>>();
+            for(int i = 0; i < 12; i++) {
+                final OCPUTask oTask = tasks[i % 3];
+                futures.add(pool.submit(new Callable<OCPUResult>() {
+                    public OCPUResult call() {
+                        return flight.execute(oTask, ENDPOINT, transport);
+                    }
+                }));
+            }
+            while(flight.collapsed() < 9) {
+                Thread.sleep(1);
+            }
+            assertEquals(3, flight.inFlight());
+            release.countDown();
+
+            for(int i = 0; i < 12; i++) {
+                OCPUResult oResult = futures.get(i).get(10, TimeUnit.SECONDS);
+                if(i % 3 == 0) {
+                    assertTrue(oResult.success());
+                } else if(i % 3 == 1) {
+                    assertFalse(oResult.success());
+                    assertEquals(404, ((OCPUException) oResult.cause()).status());
+                } else {
+                    assertNull(oResult);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(3, flight.executed());
+        assertEquals(3, memory.requests().size());
+        assertEquals(0, flight.inFlight());
+
+        Path file = Files.createTempFile("ocpu", ".json");
+        try {
+            OCPUTask toFile = OCPU.R().pkg("stats").function("rnorm")
+                                  .outputFile(file).library();
+            OCPUTask lean = OCPU.R().pkg("stats").function("rnorm")
+                                .retention(OCPURetention.OUTPUT).library();
+            String signature = ((BaseTask) task("rnorm")).signature(ENDPOINT);
+            assertFalse(signature.equals(((BaseTask) toFile).signature(ENDPOINT)));
+            assertFalse(signature.equals(((BaseTask) lean).signature(ENDPOINT)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testWarmupTracksColdAndWarmCalls() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/MASS/R/fitdistr/json", 200, "[2]");
+
+        OCPUTask rnorm = OCPU.R().pkg("stats").function("rnorm").library();
+        OCPUTask fitdistr = OCPU.R().pkg("MASS").function("fitdistr").library();
+        OCPUWarmup warmup = new OCPUWarmup().add(rnorm);
+
+        assertTrue(warmup.rejoin(ENDPOINT, transport).get(0).success());
+        assertTrue(warmup.isWarm(rnorm, ENDPOINT));
+        assertFalse(warmup.isWarm(fitdistr, ENDPOINT));
+        assertFalse(warmup.isWarm(rnorm, ENDPOINT + "2"));
+
+        for(int i = 0; i < 3; i++) {
+            assertTrue(warmup.execute(rnorm, ENDPOINT, transport).success());
+            assertTrue(warmup.execute(fitdistr, ENDPOINT, transport).success());
+        }
+
+        Map<String, OCPUWarmup.Stats> stats = new HashMap<String, OCPUWarmup.Stats>();
+        for(OCPUWarmup.Stats s : warmup.stats()) {
+            stats.put(s.library(), s);
+        }
+        assertEquals(1, stats.get("/library/stats").coldCalls());
+        assertEquals(3, stats.get("/library/stats").warmCalls());
+        assertEquals(1, stats.get("/library/MASS").coldCalls());
+        assertEquals(2, stats.get("/library/MASS").warmCalls());
+
+        warmup.reset(ENDPOINT);
+        assertFalse(warmup.isWarm(rnorm, ENDPOINT));
+        warmup.execute(rnorm, ENDPOINT, transport);
+        assertEquals(2, stats.get("/library/stats").coldCalls());
+
+        transport.reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                        "X-ocpu-session", "x0a1b2c3d");
+        OCPUTask script = OCPU.R().pkg("MASS").script("ch01.R", null).library();
+        warmup.add(script);
+        warmup.reset(ENDPOINT);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<OCPUResult> results = warmup.warm(ENDPOINT, pool, transport);
+            assertTrue(results.get(0).success());
+            assertNull(results.get(1));
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(warmup.isWarm(script, ENDPOINT));
+        assertEquals(2, stats.get("/library/MASS").coldCalls());
+    }
+
+    @Test
+    public void testSchedulerOrdersByPriorityShareAndDeadline() throws Exception {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/json", 200, "[1]");
+        OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                try {
+                    gate.await();
+                } catch(InterruptedException iex) {
+                    throw new InterruptedIOException();
+                }
+                return memory.send(request);
+            }
+        };
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            OCPUScheduler scheduler = new OCPUScheduler(pool, 1, transport);
+            scheduler.weight("a", 2);
+            List<Future<OCPUResult>> futures = new ArrayList<Future<OCPUResult>>();
+
+            futures.add(scheduler.submit(task("blocker"), ENDPOINT));
+            for(int i = 0; i < 3; i++) {
+                futures.add(scheduler.submit(task("a" + i), ENDPOINT,
+                    OCPUScheduler.Priority.BULK, "a"));
+                futures.add(scheduler.submit(task("b" + i), ENDPOINT,
+                    OCPUScheduler.Priority.BULK, "b"));
+            }
+            futures.add(scheduler.submit(task("late"), ENDPOINT,
+                OCPUScheduler.Priority.INTERACTIVE, "c", 60, TimeUnit.SECONDS));
+            futures.add(scheduler.submit(task("early"), ENDPOINT,
+                OCPUScheduler.Priority.INTERACTIVE, "c", 30, TimeUnit.SECONDS));
+            Future<OCPUResult> expired = scheduler.submit(task("expired"),
+                ENDPOINT, OCPUScheduler.Priority.INTERACTIVE, "c",
+                1, TimeUnit.MILLISECONDS);
+            Thread.sleep(20);
+            assertEquals(9, scheduler.queued());
+            assertEquals(3, scheduler.tenants());
+
+            gate.countDown();
+            for(Future<OCPUResult> future : futures) {
+                assertTrue(future.get(10, TimeUnit.SECONDS).success());
+            }
+            OCPUResult oResult = expired.get(10, TimeUnit.SECONDS);
+            assertFalse(oResult.success());
+            assertTrue(oResult.cause() instanceof OCPUException);
+            assertEquals(1, scheduler.expired());
+            assertEquals(0, scheduler.tenants());
+
+            List<String> order = new ArrayList<String>();
+            for(OCPURequest request : memory.requests()) {
+                String path = request.url().getPath();
+                order.add(path.substring(path.indexOf("/R/") + 3,
+                                         path.indexOf("/json")));
+            }
+            assertEquals(Arrays.asList("blocker", "early", "late",
+                "a0", "b0", "a1", "a2", "b1", "b2"), order);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRouterKeepsPackagesOnFewEndpoints() throws Exception {
+
+        List<String> endpoints = Arrays.asList("http://n1/ocpu",
+                                     "http://n2/ocpu", "http://n3/ocpu");
+        OCPURouter router = new OCPURouter(endpoints, 1.25);
+
+        Set<String> used = new HashSet<String>();
+        Map<String, String> homes = new HashMap<String, String>();
+        for(int i = 0; i < 30; i++) {
+            OCPUTask oTask = OCPU.R().pkg("pkg" + i).function("f").library();
+            String endpoint = router.route(oTask);
+            assertEquals(endpoint, router.route(oTask));
+            homes.put("pkg" + i, endpoint);
+            used.add(endpoint);
+        }
+        assertEquals(3, used.size());
+
+        OCPUTask gTask = OCPU.R().user("openmhealth").pkg("pkg0")
+                                 .function("f").github();
+        assertEquals(router.route(gTask), router.route(gTask));
+
+        router.remove("http://n2/ocpu");
+        for(Map.Entry<String, String> home : homes.entrySet()) {
+            OCPUTask oTask = OCPU.R().pkg(home.getKey()).function("f").library();
+            if(!home.getValue().equals("http://n2/ocpu"))
+                assertEquals(home.getValue(), router.route(oTask));
+        }
+    }
+
+    @Test
+    public void testRouterSpillsOverBeyondLoadBound() throws Exception {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/json", 200, "[1]");
+        final OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                try {
+                    gate.await();
+                } catch(InterruptedException iex) {
+                    throw new InterruptedIOException();
+                }
+                return memory.send(request);
+            }
+        };
+
+        final OCPURouter router = new OCPURouter(Arrays.asList("http://n1/ocpu",
+                                     "http://n2/ocpu", "http://n3/ocpu"), 1.0);
+        final OCPUTask oTask = task("rnorm");
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<OCPUResult>> futures = new ArrayList<Future<OCPUResult>>();
+            for(int i = 0; i < 3; i++) {
+                futures.add(pool.submit(new Callable<OCPUResult>() {
+                    public OCPUResult call() {
+                        return router.execute(oTask, transport);
+                    }
+                }));
+                while(router.load("http://n1/ocpu") + router.load("http://n2/ocpu")
+                        + router.load("http://n3/ocpu") <= i) {
+                    Thread.sleep(1);
+                }
+            }
+            gate.countDown();
+            for(Future<OCPUResult> future : futures) {
+                assertTrue(future.get(10, TimeUnit.SECONDS).success());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Set<String> hosts = new HashSet<String>();
+        for(OCPURequest request : memory.requests()) {
+            hosts.add(request.url().getHost());
+        }
+        assertEquals(3, hosts.size());
+        assertEquals(2, router.spilled());
+        assertEquals(0, router.load("http://n1/ocpu"));
+    }
+
+    @Test
+    public void testMemoryBudgetBoundsBytesInFlight() throws Exception {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/stats/R/runif/json", 200,
+                   Arrays.toString(new int[200]));
+        final OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                if(request.url().getPath().contains("rnorm")) {
+                    try {
+                        gate.await();
+                    } catch(InterruptedException iex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return memory.send(request);
+            }
+        };
+
+        Map data = new HashMap();
+        data.put("x", new int[250]);
+        final OCPUTask large = OCPU.R().pkg("stats").function("rnorm")
+                                   .input(data).library();
+        final OCPUMemoryBudget budget = new OCPUMemoryBudget(1000, 100, 0);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<OCPUResult> first = pool.submit(new Callable<OCPUResult>() {
+                public OCPUResult call() {
+                    return budget.execute(large, ENDPOINT, transport);
+                }
+            });
+            while(budget.used() == 0) {
+                Thread.sleep(1);
+            }
+            OCPUResult rejected = budget.execute(large, ENDPOINT, transport);
+            assertFalse(rejected.success());
+            assertTrue(rejected.cause() instanceof OCPUException);
+            assertEquals(1, budget.rejected());
+
+            gate.countDown();
+            assertTrue(first.get(10, TimeUnit.SECONDS).success());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, budget.used());
+
+        OCPUTask small = task("runif");
+        assertTrue(budget.execute(small, ENDPOINT, transport).success());
+        assertTrue(budget.peak() > 600);
+        assertEquals(0, budget.used());
+
+        OCPUTask limited = OCPU.R().pkg("stats").function("runif")
+                               .maxResponseSize(100).library();
+        OCPUResult oResult = limited.execute(ENDPOINT, transport);
+        assertFalse(oResult.success());
+        assertTrue(oResult.cause().getMessage().contains("100 bytes"));
+
+        memory.reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                     "X-ocpu-session", "x0a1b2c3d")
+              .reply("GET", "/tmp/x0a1b2c3d/R/dd/json", 200,
+                     Arrays.toString(new int[200]));
+        OCPUTask script = OCPU.R().pkg("MASS").script("ch01.R", "dd")
+                              .maxResponseSize(100).library();
+        oResult = script.execute(ENDPOINT, transport);
+        assertFalse(oResult.success());
+        assertTrue(oResult.cause().getCause().getMessage().contains("100 bytes"));
+    }
+
+    @Test
+    public void testCancelledExecutionDeletesSession() throws Exception {
+
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("GET", "/tmp/x0a1b2c3d/R/dd/json", 200, "[1]");
+        OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                if(request.method().equals("GET")) {
+                    /*
+                     * Ignore interrupts, as HttpURLConnection does,
+                     * until the exchange is aborted.
+                     */
+                    final CountDownLatch aborted = new CountDownLatch(1);
+                    request.onAbort(new Closeable() {
+                        public void close() {
+                            aborted.countDown();
+                        }
+                    });
+                    fetching.countDown();
+                    for(;;) {
+                        try {
+                            aborted.await();
+                            throw new InterruptedIOException();
+                        } catch(InterruptedException iex) {}
+                    }
+                }
+                return memory.send(request);
+            }
+        };
+
+        OCPUTask oTask = OCPU.R().pkg("MASS").script("ch01.R", "dd").library();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            OCPUExecution execution =
+                OCPUExecution.submit(oTask, ENDPOINT, pool, transport);
+            assertTrue(fetching.await(10, TimeUnit.SECONDS));
+            assertTrue(execution.cancel(true));
+            assertTrue(execution.isCancelled());
+            assertFalse(execution.cancel(true));
+
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+            OCPURequest delete = memory.requests().get(memory.requests().size() - 1);
+            assertEquals("DELETE", delete.method());
+            assertEquals("/ocpu/tmp/x0a1b2c3d/", delete.url().getPath());
+            assertEquals(Collections.singleton("x0a1b2c3d"), execution.sessions());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReaperDeletesFetchedScriptSessions() throws Exception {
+
+        OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("GET", "/tmp/x0a1b2c3d/R/dd/json", 200, "[1]")
+            .reply("POST", "/library/base/R/identity", 201, "",
+                   "X-ocpu-session", "x0e5f6a7b");
+        OCPUTask oTask = OCPU.R().pkg("MASS").script("ch01.R", "dd").library();
+        OCPUSessionReaper reaper = new OCPUSessionReaper(memory, 60000L);
+        assertTrue(oTask.execute(ENDPOINT, reaper).success());
+        reaper.close();
+        assertEquals(0, reaper.reaped());
+
+        memory.reply("DELETE", "/tmp/x0a1b2c3d/", 204, "");
+        reaper = new OCPUSessionReaper(memory, 60000L);
+        assertTrue(oTask.execute(ENDPOINT, reaper).success());
+        OCPUDatasets datasets = new OCPUDatasets(8);
+        datasets.pin("people", Arrays.asList(26, 56));
+        OCPUTask dTask = OCPU.R().pkg("base").function("identity")
+                             .dataset("x", "people").library();
+        datasets.execute(dTask, ENDPOINT, reaper);
+        assertEquals(1, reaper.pending());
+
+        reaper.close();
+        assertEquals(1, reaper.reaped());
+        OCPURequest delete = memory.requests().get(memory.requests().size() - 1);
+        assertEquals("DELETE", delete.method());
+        assertEquals("/ocpu/tmp/x0a1b2c3d/", delete.url().getPath());
+    }
+
+    @Test
+    public void testSweepCollectsGridColumns() throws Exception {
+
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/qnorm/json", 200, "[0.5]");
+        final Set<String> hosts =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch inflight = new CountDownLatch(4);
+        OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                hosts.add(request.url().getHost());
+                inflight.countDown();
+                try {
+                    inflight.await(10, TimeUnit.SECONDS);
+                } catch(InterruptedException iex) {
+                    throw new InterruptedIOException();
+                }
+                return memory.send(request);
+            }
+        };
+
+        Map fInput = new HashMap();
+        fInput.put("p", 0.9);
+        fInput.put("sd", 99);
+        OCPUSweep sweep = OCPUSweep.of(OCPU.R().pkg("stats").function("qnorm")
+                                           .input(fInput).library())
+                                   .axis("mean", 0, 1, 2)
+                                   .range("sd", 1.0, 2.0, 2);
+        assertEquals(6, sweep.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            OCPUSweep.Results results = sweep.run(
+                Arrays.asList("http://ocpu1/ocpu", "http://ocpu2/ocpu"),
+                2, pool, transport);
+            assertTrue(results.await(10, TimeUnit.SECONDS));
+
+            assertEquals(6, results.completed());
+            assertEquals(Arrays.asList("mean", "sd"), results.axes());
+            assertEquals(6, new HashSet<Object>(zip(results.column("mean"),
+                                            results.column("sd"))).size());
+            assertTrue(results.result(2, 1.0).success());
+            assertNull(results.result(3, 1.0));
+            for(double[] output : results.outputs("qnorm", double[].class))
+                assertEquals(0.5, output[0], 0.0);
+            assertEquals(new HashSet<String>(Arrays.asList("ocpu1", "ocpu2")), hosts);
+
+            Set<String> inputs = new HashSet<String>();
+            for(OCPURequest request : memory.requests())
+                inputs.add(new String(request.body(), "UTF-8"));
+            assertTrue(inputs.contains("{\"p\":0.9,\"mean\":2,\"sd\":1.0}"));
+            assertEquals(6, inputs.size());
+
+            OCPUSweep.Results sampled = sweep.sample(4, 42L)
+                .run(Collections.singleton(ENDPOINT), 1, pool, memory);
+            assertTrue(sampled.await(10, TimeUnit.SECONDS));
+            assertEquals(4, sampled.completed());
+            assertEquals(4, new HashSet<Object>(zip(sampled.column("mean"),
+                                            sampled.column("sd"))).size());
+
+            memory.reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                         "X-ocpu-session", "x0a1b2c3d");
+            OCPUSweep.Results scripts = OCPUSweep.of(OCPU.R().pkg("MASS")
+                                            .script("ch01.R", null).library())
+                .axis("n", 1, 2)
+                .run(Collections.singleton(ENDPOINT), 1, pool, memory);
+            assertTrue(scripts.await(10, TimeUnit.SECONDS));
+            assertTrue(scripts.result(1).success());
+            assertEquals(Arrays.asList(null, null),
+                         scripts.outputs("dd", double[].class));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFastAndProbes() throws Exception {
+
+        OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/stats/R/broken/json", 400, "R error")
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d");
+        OCPUCircuitBreaker breaker =
+            new OCPUCircuitBreaker(4, 0.5, 10000L, 1.0, 50L, 2);
+
+        OCPUTask script = OCPU.R().pkg("MASS").script("ch01.R", null).library();
+        for(int i = 0; i < 4; i++)
+            assertNull(breaker.execute(script, ENDPOINT, memory));
+        assertEquals(OCPUCircuitBreaker.State.CLOSED,
+                     breaker.state(script, ENDPOINT));
+
+        for(int i = 0; i < 4; i++)
+            assertFalse(breaker.execute(task("broken"), ENDPOINT, memory).success());
+        assertEquals(OCPUCircuitBreaker.State.OPEN,
+                     breaker.state(task("broken"), ENDPOINT));
+        assertEquals(OCPUCircuitBreaker.State.CLOSED, breaker.state(ENDPOINT));
+
+        int sent = memory.requests().size();
+        OCPUResult oResult = breaker.execute(task("broken"), ENDPOINT, memory);
+        assertTrue(oResult.cause() instanceof OCPUCircuitBreaker.OpenException);
+        assertEquals(sent, memory.requests().size());
+        assertEquals(1, breaker.rejected());
+        assertTrue(breaker.execute(task("rnorm"), ENDPOINT, memory).success());
+
+        Thread.sleep(60);
+        assertEquals(OCPUCircuitBreaker.State.HALF_OPEN,
+                     breaker.state(task("broken"), ENDPOINT));
+        assertFalse(breaker.execute(task("broken"), ENDPOINT, memory).success());
+        assertEquals(OCPUCircuitBreaker.State.OPEN,
+                     breaker.state(task("broken"), ENDPOINT));
+
+        Thread.sleep(60);
+        memory.reply("POST", "/library/stats/R/broken/json", 200, "[2]");
+        assertTrue(breaker.execute(task("broken"), ENDPOINT, memory).success());
+        assertTrue(breaker.execute(task("broken"), ENDPOINT, memory).success());
+        assertEquals(OCPUCircuitBreaker.State.CLOSED,
+                     breaker.state(task("broken"), ENDPOINT));
+    }
+
+    @Test
+    public void testStructuredFanOutFanIn() throws Exception {
+
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/stats/R/runif/json", 200, "[2]")
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d");
+        final Set<String> threads =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch blocked = new CountDownLatch(1);
+        OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                threads.add(Thread.currentThread().getName());
+                if(request.url().getPath().contains("/hang/")) {
+                    blocked.countDown();
+                    try {
+                        new CountDownLatch(1).await();
+                    } catch(InterruptedException iex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return memory.send(request);
+            }
+        };
+
+        ExecutorService executor = OCPUExecutors.newVirtualThreadExecutor();
+        try {
+            List<OCPUResult> results = OCPUExecutors.all(Arrays.asList(
+                task("rnorm"), task("missing"), task("runif")),
+                ENDPOINT, executor, transport);
+            assertEquals(3, results.size());
+            assertTrue(results.get(0).success());
+            assertFalse(results.get(1).success());
+            assertEquals(Arrays.asList(2.0), results.get(2).output().get("runif"));
+            String prefix = OCPUExecutors.virtualThreads() ?
+                "ocpu-virtual-" : "ocpu-executor-";
+            for(String name : threads)
+                assertTrue(name.startsWith(prefix));
+
+            OCPUResult oResult = OCPUExecutors.first(Arrays.asList(
+                task("missing"), task("hang"), task("runif")),
+                ENDPOINT, executor, transport);
+            assertTrue(oResult.success());
+            assertEquals(Arrays.asList(2.0), oResult.output().get("runif"));
+            assertNull(OCPUExecutors.first(Arrays.asList(task("missing"),
+                OCPU.R().pkg("MASS").script("ch01.R", null).library()),
+                ENDPOINT, executor, transport));
+
+            final Thread caller = Thread.currentThread();
+            new Thread() {
+                public void run() {
+                    try {
+                        blocked.await();
+                        caller.interrupt();
+                    } catch(InterruptedException iex) {}
+                }
+            }.start();
+            try {
+                OCPUExecutors.all(Arrays.asList(task("rnorm"), task("hang")),
+                                  ENDPOINT, executor, transport);
+                fail("Expected interrupt.");
+            } catch(InterruptedException iex) {
+                assertFalse(Thread.currentThread().isInterrupted());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWorkerProcessesSerializedTaskStream() throws Exception {
+
+        OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d");
+        OCPUWorker worker = new OCPUWorker(ENDPOINT, 2, memory);
+
+        ByteArrayOutputStream tasks = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(tasks);
+        for(int i = 0; i < 5; i++)
+            oos.writeObject(task("rnorm"));
+        oos.writeObject("not a task");
+        for(int i = 0; i < 2; i++)
+            oos.writeObject(OCPU.R().pkg("MASS").script("ch01.R", null).library());
+        oos.close();
+
+        ByteArrayOutputStream results = new ByteArrayOutputStream();
+        assertEquals(8, worker.process(
+            new ByteArrayInputStream(tasks.toByteArray()), results));
+        assertEquals(8, worker.processed());
+        assertEquals(3, worker.failed());
+
+        ObjectInputStream ois = new ObjectInputStream(
+            new ByteArrayInputStream(results.toByteArray()));
+        Map<Long, OCPUResult> bySeq = new HashMap<Long, OCPUResult>();
+        for(int i = 0; i < 8; i++) {
+            long seq = ois.readLong();
+            bySeq.put(seq, (OCPUResult) ois.readObject());
+        }
+        assertEquals(8, bySeq.size());
+        assertTrue(bySeq.get(0L).success());
+        assertFalse(bySeq.get(5L).success());
+        assertFalse(bySeq.get(6L).success());
+        assertFalse(bySeq.get(7L).success());
+
+        ByteArrayOutputStream hostile = new ByteArrayOutputStream();
+        oos = new ObjectOutputStream(hostile);
+        oos.writeObject(new ArrayList<Object>(Arrays.asList(task("rnorm"))));
+        oos.close();
+        try {
+            worker.process(new ByteArrayInputStream(hostile.toByteArray()),
+                           new ByteArrayOutputStream());
+            fail("Expected InvalidClassException.");
+        } catch(InvalidClassException icex) {
+            assertEquals("java.util.ArrayList", icex.classname);
+        }
+
+        ServerSocket server = new ServerSocket(0);
+        try {
+            final OCPUWorker served = worker;
+            final ServerSocket listening = server;
+            new Thread() {
+                public void run() {
+                    try {
+                        served.serve(listening);
+                    } catch(IOException ioex) {}
+                }
+            }.start();
+            Socket socket = new Socket("localhost", server.getLocalPort());
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            out.writeObject(task("rnorm"));
+            out.flush();
+            assertEquals(0L, in.readLong());
+            assertTrue(((OCPUResult) in.readObject()).success());
+            socket.shutdownOutput();
+            assertEquals(-1, in.read());
+            socket.close();
+        } finally {
+            server.close();
+            worker.close();
+        }
+    }
+
+    @Test
+    public void testSlowLogCapturesSlowestAndFailedCalls() throws Exception {
+
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1]")
+            .reply("POST", "/library/stats/R/slow/json", 200, "[1,2,3,4,5,6]");
+        OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                if(request.url().getPath().contains("/slow/")) {
+                    try {
+                        Thread.sleep(30);
+                    } catch(InterruptedException iex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return memory.send(request);
+            }
+        };
+
+        OCPUSlowLog slowLog = new OCPUSlowLog(2, 10, 60000L, 8);
+        Map fInput = new HashMap();
+        fInput.put("n", 100);
+        OCPUTask slow = OCPU.R().pkg("stats").function("slow")
+                            .input(fInput).library();
+        for(int i = 0; i < 5; i++)
+            assertTrue(slowLog.execute(task("rnorm"), ENDPOINT, transport).success());
+        for(int i = 0; i < 2; i++)
+            assertTrue(slowLog.execute(slow, ENDPOINT, transport).success());
+        assertFalse(slowLog.execute(task("missing"), ENDPOINT, transport).success());
+        for(int i = 0; i < 5; i++)
+            slowLog.execute(task("rnorm"), ENDPOINT, transport);
+
+        List<OCPUSlowLog.Capture> captures = slowLog.captures();
+        assertEquals(3, captures.size());
+        OCPUSlowLog.Capture capture = captures.get(0);
+        assertTrue(capture.success());
+        assertTrue(capture.millis() >= 30);
+        assertEquals("ocpu", capture.host());
+        assertEquals("/library/stats/R/slow/json", capture.call());
+        assertEquals(200, capture.status());
+        assertEquals("{\"n\":100...", capture.inputSample());
+        assertEquals("[1,2,3,4...", capture.outputSample());
+        assertEquals(13, capture.outputBytes());
+        assertTrue(capture.exchanges().get(0).waitMillis() >= 30);
+
+        OCPUSlowLog.Capture failed = captures.get(2);
+        assertFalse(failed.success());
+        assertEquals(404, failed.status());
+        assertTrue(slowLog.getThresholdMillis() >= 30);
+
+        javax.management.ObjectName name = slowLog.register("test");
+        javax.management.MBeanServer server =
+            java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(3, server.getAttribute(name, "Captured"));
+            String dump = (String) server.invoke(name, "dump", null, null);
+            assertTrue(dump.contains("FAILED"));
+            assertTrue(dump.contains("POST /ocpu/library/stats/R/slow/json status=200"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+
+        memory.reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                     "X-ocpu-session", "x0a1b2c3d");
+        OCPUSlowLog scripts = new OCPUSlowLog(2, 10, 60000L, 8);
+        assertNull(scripts.execute(OCPU.R().pkg("MASS").script("ch01.R", null)
+                                       .library(), ENDPOINT, transport));
+        for(OCPUSlowLog.Capture script : scripts.captures())
+            assertTrue(script.success());
+    }
+
+    @Test
+    public void testResultStorePersistsVerifiesAndEvicts() throws Exception {
+
+        OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1.5]");
+        Path dir = Files.createTempDirectory("ocpu-store");
+        Path log = dir.resolve("ocpu-results.log");
+
+        OCPUResultStore store = new OCPUResultStore(dir, 1L << 20);
+        OCPUResult first = store.execute(rnorm(1), ENDPOINT, memory);
+        OCPUResult second = store.execute(rnorm(1), ENDPOINT, memory);
+        assertTrue(second.success());
+        assertEquals(first.output(), second.output());
+        assertEquals(1, memory.requests().size());
+        assertEquals(1, store.hits());
+        assertEquals(1, store.misses());
+        store.close();
+
+        store = new OCPUResultStore(dir, 1L << 20);
+        assertEquals(1, store.size());
+        assertEquals(first.output(),
+                     store.execute(rnorm(1), ENDPOINT, memory).output());
+        assertEquals(1, memory.requests().size());
+
+        RandomAccessFile raf = new RandomAccessFile(log.toFile(), "rw");
+        raf.seek(raf.length() - 16);
+        int b = raf.read();
+        raf.seek(raf.length() - 16);
+        raf.write(b ^ 0xff);
+        raf.close();
+        assertTrue(store.execute(rnorm(1), ENDPOINT, memory).success());
+        assertEquals(2, memory.requests().size());
+        long bytes = store.bytes();
+        store.close();
+
+        raf = new RandomAccessFile(log.toFile(), "rw");
+        raf.setLength(bytes - 3);
+        raf.close();
+        store = new OCPUResultStore(dir, 1L << 20);
+        assertEquals(0, store.size());
+        assertEquals(0, store.bytes());
+        store.close();
+
+        store = new OCPUResultStore(dir, 4 * bytes);
+        for(int i = 0; i < 10; i++)
+            store.execute(rnorm(i), ENDPOINT, memory);
+        assertTrue(store.bytes() <= 4 * bytes);
+        assertTrue(store.size() < 10);
+        int requests = memory.requests().size();
+        store.execute(rnorm(9), ENDPOINT, memory);
+        assertEquals(requests, memory.requests().size());
+        store.execute(rnorm(0), ENDPOINT, memory);
+        assertEquals(requests + 1, memory.requests().size());
+        store.close();
+    }
+
+    @Test
+    public void testResultStoreCollapsesConcurrentMisses() throws Exception {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OCPUMemoryTransport memory = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1.5]");
+        final OCPUTransport transport = new OCPUTransport() {
+            public OCPUResponse send(OCPURequest request) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException iex) {
+                    throw new InterruptedIOException();
+                }
+                return memory.send(request);
+            }
+        };
+        final OCPUResultStore store =
+            new OCPUResultStore(Files.createTempDirectory("ocpu-store"), 1L << 20);
+
+        final OCPUTask oTask = rnorm(1);
+        final List<OCPUResult> results =
+                Collections.synchronizedList(new ArrayList<OCPUResult>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    results.add(store.execute(oTask, ENDPOINT, transport));
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            if(i == 0)
+                assertTrue(entered.await(10, TimeUnit.SECONDS));
+        }
+        for(Thread thread : threads.subList(1, 4)) {
+            while(thread.getState() != Thread.State.WAITING)
+                Thread.sleep(1);
+        }
+        release.countDown();
+        for(Thread thread : threads)
+            thread.join(10000);
+
+        assertEquals(4, results.size());
+        assertEquals(1, memory.requests().size());
+        assertEquals(4, store.misses());
+        assertEquals(1, store.size());
+        long bytes = store.bytes();
+
+        OCPUTask lean = OCPU.R().pkg("stats").function("rnorm")
+                            .input(Collections.singletonMap("n", 1))
+                            .retention(OCPURetention.OUTPUT).library();
+        assertTrue(store.execute(lean, ENDPOINT, memory).success());
+        assertEquals(2, memory.requests().size());
+        assertTrue(store.execute(rnorm(1), ENDPOINT, memory).success());
+        assertEquals(2, memory.requests().size());
+        assertEquals(2, store.size());
+        assertTrue(store.bytes() < 3 * bytes);
+        store.close();
+    }
+
+    private static List<String> zip(List<Object> a, List<Object> b) {
+        List<String> pairs = new ArrayList<String>();
+        for(int i = 0; i < a.size(); i++)
+            pairs.add(a.get(i) + ":" + b.get(i));
+        return pairs;
+    }
+
+    private static OCPUTask rnorm(int n) throws OCPUException {
+        Map fInput = new HashMap();
+        fInput.put("n", n);
+        return OCPU.R().pkg("stats").function("rnorm").input(fInput).library();
+    }
+
+    private static OCPUTask task(String function) {
+        return OCPU.R().pkg("stats").function(function).library();
+    }
+
+    static String content(OCPURequest request) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        request.content().writeTo(Channels.newChannel(bos));
+        return bos.toString("UTF-8");
+    }
+
+}
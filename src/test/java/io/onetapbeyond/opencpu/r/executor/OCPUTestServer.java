@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Local stand-in for an OpenCPU server used by tests that must not
+ * depend on a public endpoint. Function calls echo the JSON input as
+ * their return value, script calls create a session whose workspace
+ * holds the requested object as ["path"].
+ */
+public class OCPUTestServer {
+
+    private final HttpServer server;
+    private final ExecutorService pool;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    public OCPUTestServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+        pool = Executors.newFixedThreadPool(32);
+        server.setExecutor(pool);
+        server.createContext("/ocpu", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                calls.incrementAndGet();
+                respond(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public String endpoint() {
+        return "http://localhost:" +
+                    server.getAddress().getPort() + "/ocpu";
+    }
+
+    public int calls() {
+        return calls.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+
+        String path = exchange.getRequestURI().getPath();
+        byte[] body = read(exchange.getRequestBody());
+
+        if(path.contains("/UNDEFINED")) {
+            send(exchange, 404, "UNDEFINED not found.".getBytes("UTF-8"));
+        } else if(path.endsWith("/json") && path.startsWith("/ocpu/tmp/")) {
+            send(exchange, 200, ("[\"" + path + "\"]").getBytes("UTF-8"));
+        } else if(path.endsWith("/json")) {
+            send(exchange, 200, body);
+        } else {
+            String session = "x0" + sessions.incrementAndGet();
+            exchange.getResponseHeaders().add("X-ocpu-session", session);
+            send(exchange, 201, ("/ocpu/tmp/" + session + "/R/.val").getBytes("UTF-8"));
+        }
+    }
+
+    private static void send(HttpExchange exchange,
+                             int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while((n = is.read(buf)) != -1) {
+            bos.write(buf, 0, n);
+        }
+        is.close();
+        return bos.toByteArray();
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 David Russell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.onetapbeyond.opencpu.r.executor;
+
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class OCPUTransportTests {
+
+    private static OCPUTestServer server;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        server = new OCPUTestServer();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+    }
+
+    @Test
+    public void testLegacyTransportFunctionCall() throws OCPUException {
+        assertFunctionCall(OCPUTransports.legacy());
+    }
+
+    @Test
+    public void testHttp2TransportFunctionCall() throws OCPUException {
+        assertFunctionCall(OCPUTransports.http2());
+    }
+
+    @Test
+    public void testHttp2TransportScriptCall() throws OCPUException {
+
+        OCPUTask oTask = OCPU.R()
+                             .pkg("MASS")
+                             .script("ch01.R", "dd")
+                             .library();
+        OCPUResult oResult = oTask.execute(server.endpoint(),
+                                           OCPUTransports.http2());
+        assertTrue(oResult.success());
+        assertNotNull(oResult.output().get("dd"));
+    }
+
+    @Test
+    public void testMemoryTransportScriptCall() throws OCPUException {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("GET", "/tmp/x0a1b2c3d/R/dd/json", 200, "[1,2,3]");
+
+        OCPUTask oTask = OCPU.R()
+                             .pkg("MASS")
+                             .script("ch01.R", "dd")
+                             .library();
+        OCPUResult oResult = oTask.execute("http://ocpu/ocpu", transport);
+        assertTrue(oResult.success());
+        assertEquals(Arrays.asList(1.0, 2.0, 3.0), oResult.output().get("dd"));
+        assertEquals(2, transport.requests().size());
+        assertEquals("GET", transport.requests().get(1).method());
+    }
+
+    @Test
+    public void testMemoryTransportErrorResponse() throws OCPUException {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport();
+        OCPUTask oTask = OCPU.R()
+                             .pkg("stats")
+                             .function("rnorm")
+                             .library();
+        OCPUResult oResult = oTask.execute("http://ocpu/ocpu", transport);
+        assertFalse(oResult.success());
+        assertNotNull(oResult.error());
+        assertTrue(oResult.cause() instanceof OCPUException);
+    }
+
+    @Test
+    public void testScriptOutputStreamedToFile() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/MASS/scripts/ch01.R", 201, "",
+                   "X-ocpu-session", "x0a1b2c3d")
+            .reply("GET", "/tmp/x0a1b2c3d/R/dd/json", 200,
+                   "[1.5, 2,\n-3e2, \"NA\", null]");
+
+        Path file = Files.createTempFile("ocpu", ".json");
+        try {
+            OCPUTask oTask = OCPU.R()
+                                 .pkg("MASS")
+                                 .script("ch01.R", "dd")
+                                 .outputFile(file)
+                                 .library();
+            OCPUResult oResult = oTask.execute("http://ocpu/ocpu", transport);
+            assertTrue(oResult.success());
+            assertEquals(file, oResult.file("dd"));
+            assertNull(oResult.output().get("dd"));
+
+            OCPUVector dd = oResult.vector("dd");
+            assertEquals(-300.0, dd.get(2), 0.0);
+            assertEquals(5, dd.size());
+            assertEquals(1.5, dd.get(0), 0.0);
+            assertTrue(Double.isNaN(dd.get(3)));
+            assertTrue(Double.isNaN(dd.get(4)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testConcurrentExecutionsReplaceOutputFile() throws Exception {
+
+        final String body = Arrays.toString(new double[50000]);
+        final OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, body);
+
+        Path dir = Files.createTempDirectory("ocpu");
+        Path file = dir.resolve("rnorm.json");
+        final OCPUTask oTask = OCPU.R()
+                                   .pkg("stats")
+                                   .function("rnorm")
+                                   .outputFile(file)
+                                   .library();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<OCPUResult>> results = new ArrayList<Future<OCPUResult>>();
+            for(int i = 0; i < 32; i++) {
+                results.add(pool.submit(new Callable<OCPUResult>() {
+                    public OCPUResult call() {
+                        return oTask.execute("http://ocpu/ocpu", transport);
+                    }
+                }));
+            }
+            for(Future<OCPUResult> oResult : results)
+                assertTrue(oResult.get().success());
+            assertEquals(body, new String(Files.readAllBytes(file), "UTF-8"));
+            assertEquals(1, dir.toFile().list().length);
+        } finally {
+            pool.shutdownNow();
+            Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testFullRetentionOutputBoundFromFile() throws Exception {
+
+        OCPUMemoryTransport transport = new OCPUMemoryTransport()
+            .reply("POST", "/library/stats/R/rnorm/json", 200, "[1.5,2,-3]");
+
+        Path file = Files.createTempFile("ocpu", ".json");
+        try {
+            OCPUTask oTask = OCPU.R()
+                                 .pkg("stats")
+                                 .function("rnorm")
+                                 .outputFile(file)
+                                 .retention(OCPURetention.FULL)
+                                 .library();
+            OCPUResult oResult = oTask.execute("http://ocpu/ocpu", transport);
+            assertTrue(oResult.success());
+            assertArrayEquals(new double[] { 1.5, 2.0, -3.0 },
+                              oResult.output("rnorm", double[].class), 0.0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFileInputUploadedAsMultipart() throws Exception {
+
+        Path file = Files.createTempFile("ocpu", ".csv");
+        Files.write(file, "age,marital\n26,MARRIED\n".getBytes("UTF-8"));
+        try {
+            Map data = new HashMap();
+            data.put("header", true);
+            OCPUTask oTask = OCPU.R()
+                                 .pkg("utils")
+                                 .function("read.csv")
+                                 .input(data)
+                                 .file("file", file)
+                                 .library();
+            OCPUTransport[] transports = { OCPUTransports.legacy(),
+                                           OCPUTransports.http2() };
+            for(OCPUTransport transport : transports) {
+                OCPUResult oResult = oTask.execute(server.endpoint(), transport);
+                assertTrue(oResult.success());
+                String body = (String) oResult.output().get("read.csv");
+                assertTrue(body.contains("name=\"header\"\n\ntrue\n"));
+                assertTrue(body.contains("filename=\"" + file.getFileName()));
+                assertTrue(body.contains("Content-Type: text/csv"));
+                assertTrue(body.contains("26,MARRIED"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertFunctionCall(OCPUTransport transport)
+                                                throws OCPUException {
+        Map data = new HashMap();
+        data.put("n", 10);
+        OCPUTask oTask = OCPU.R()
+                             .pkg("stats")
+                             .function("rnorm")
+                             .input(data)
+                             .library();
+        OCPUResult oResult = oTask.execute(server.endpoint(), transport);
+        assertTrue(oResult.success());
+        assertEquals(oResult.input(), oResult.output().get("rnorm"));
+    }
+
+}